@@ -0,0 +1,301 @@
+package com.innotech.qrpc;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 阻塞IO实现
+ * 每个连接一个读线程、一个写线程
+ */
+class BioTransport extends Transport {
+    private Socket mSocket;
+    //socket输入流
+    private InputStream mInputStream;
+    //socket输出流
+    private DataOutputStream mDataOutputStream;
+    // read线程
+    private Thread readThread;
+    // write线程
+    private Thread writeThread;
+    // 是否结束写线程
+    private final AtomicBoolean stopWrite;
+    private final FrameDecoder frameDecoder;
+    // 已从写队列取出、还未写出的消息，写线程取出、写入时和close取回时都要持有writingLock
+    private final Object writingLock = new Object();
+    private final List<WriteData> writing = new ArrayList<>();
+    // close已取回未写出的消息，写线程不再从写队列取消息
+    private boolean writingClosed;
+
+    BioTransport(Listener listener) {
+        super(listener);
+        stopWrite = new AtomicBoolean(false);
+        frameDecoder = newFrameDecoder();
+    }
+
+    @Override
+    void connect(SocketChannel channel) throws IOException {
+        // 切换为阻塞模式，设置输入输出流
+        channel.configureBlocking(true);
+        mSocket = channel.socket();
+        mSocket.setKeepAlive(true);
+        mInputStream = mSocket.getInputStream();
+        mDataOutputStream = new DataOutputStream(mSocket.getOutputStream());
+    }
+
+    @Override
+    void start() {
+        // 开启读线程
+        read();
+        // 开启写线程
+        writeData();
+    }
+
+    @Override
+    boolean isConnected() {
+        Socket socket = mSocket;
+        return socket != null && socket.isConnected() && !socket.isClosed() && !socket.isInputShutdown();
+    }
+
+    @Override
+    protected void doClose() {
+        // 检查读线程是否关闭，若存活，则终止掉
+        if (readThread != null) {
+            if (readThread.isAlive()) {
+                readThread.interrupt();
+            }
+            readThread = null;
+        }
+        // 检查写线程是否关闭，若存活，则终止掉
+        if (writeThread != null) {
+            stopWrite.compareAndSet(false, true);
+            if (writeThread.isAlive()) {
+                writeThread.interrupt();
+            }
+            writeThread = null;
+        }
+        // 检查socket是否存在，以及是否close
+        if (mSocket != null) {
+            if (!mSocket.isClosed()) {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    //
+                }
+            }
+            mSocket = null;
+        }
+    }
+
+    /**
+     * 读取数据
+     */
+    private void read() {
+        readThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // 读缓冲区，只在读线程中使用，读线程结束时放回缓冲区池
+                PooledBuffer pooledReadBuffer = BufferPool.heap().allocate(READ_BUFFER_SIZE);
+                ByteBuffer readBuffer = pooledReadBuffer.buffer();
+                try {
+                    readLoop(readBuffer);
+                } finally {
+                    frameDecoder.release();
+                    pooledReadBuffer.release();
+                }
+            }
+        });
+        readThread.start();
+    }
+
+    /**
+     * 循环读取，直到线程被中断或连接异常
+     */
+    private void readLoop(ByteBuffer readBuffer) {
+        while (true) {
+            // 每次循环线判断一下外部是否有中断线程
+            boolean isInterrupted = Thread.currentThread().isInterrupted();
+            if (isInterrupted) {
+                LogUtils.e("方法:read,读线程:" + Thread.currentThread().getName() + "终止");
+                IMReport.getInstance().report("方法:read,读线程:" + Thread.currentThread().getName() + "终止");
+                break;
+            }
+            try {
+                // 读取长连接信息，一次读到的数据可能包含多个包或不完整的包
+                int n = mInputStream.read(readBuffer.array(), 0, readBuffer.capacity());
+                // 读到-1，需要切换长连接状态，重置连接
+                if (n == -1) {
+                    listener.onError(this, "方法:read,读到-1");
+                    break;
+                }
+                markRead();
+                readBuffer.position(0);
+                readBuffer.limit(n);
+                frameDecoder.decode(readBuffer);
+                listener.onReadComplete(this);
+            } catch (Exception e) {
+                if (! (e instanceof InterruptedException)) {
+                    listener.onError(this, "方法:read,读线程异常:" + e.getMessage());
+                } else {
+                    LogUtils.e("方法:read,读线程异常:" + e.getMessage());
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * 写数据
+     * 每次唤醒时把写队列中的消息合并后一次写入
+     * 写失败或连接断开时未写出的消息留在writing中，由close取回
+     */
+    private void writeData() {
+        writeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<WriteData> written = new ArrayList<>(maxWriteCount);
+                try {
+                    while (!stopWrite.get()) {
+                        boolean isInterrupted = Thread.currentThread().isInterrupted();
+                        if (isInterrupted) {
+                            LogUtils.e("方法:writeData,写线程:" + Thread.currentThread().getName() + "终止");
+                            IMReport.getInstance().report("方法:writeData,写线程:" + Thread.currentThread().getName() + "终止");
+                            break;
+                        }
+                        int bytes;
+                        while ((bytes = takeWrite(Integer.MAX_VALUE)) < 0) {
+                            if (stopWrite.get()) {
+                                return;
+                            }
+                            awaitWrite(0);
+                        }
+                        collectBatch(bytes);
+                        if (!isConnected()) {
+                            listener.onError(BioTransport.this, "方法:writeData,写之前检测到长连接已断开");
+                            break;
+                        }
+                        synchronized (writingLock) {
+                            if (writingClosed) {
+                                break;
+                            }
+                            writeBatch(writing);
+                            written.addAll(writing);
+                            writing.clear();
+                        }
+                        try {
+                            markWritten();
+                            for (WriteData writeData : written) {
+                                writeData.setWriteState(WriteData.WRITE_SUCCESS);
+                                listener.onWritten(BioTransport.this, writeData);
+                            }
+                            LogUtils.e("write success");
+                        } finally {
+                            for (WriteData writeData : written) {
+                                writeData.releaseFrame();
+                            }
+                            written.clear();
+                        }
+                    }
+                } catch (Exception e) {
+                    if (! (e instanceof InterruptedException)) {
+                        listener.onError(BioTransport.this, "方法:writeData,写异常:" + e.getMessage());
+                    } else {
+                        LogUtils.e("方法:writeData,写异常:" + e.getMessage());
+                    }
+                }
+            }
+        });
+        writeThread.start();
+    }
+
+    /**
+     * 从写队列取一条消息放入writing
+     * @return 消息的字节数，队列为空或close已取回未写出的消息时返回-1
+     */
+    private int takeWrite(int maxBytes) {
+        synchronized (writingLock) {
+            if (writingClosed) {
+                return -1;
+            }
+            WriteData data = pollWrite(maxBytes);
+            if (data == null) {
+                return -1;
+            }
+            writing.add(data);
+            return data.getFrame().remaining();
+        }
+    }
+
+    /**
+     * 未写出的消息和写队列中的消息一起由close返回
+     */
+    @Override
+    void drainUnsent(List<WriteData> pending) {
+        synchronized (writingLock) {
+            writingClosed = true;
+            pending.addAll(writing);
+            writing.clear();
+        }
+    }
+
+    /**
+     * 从写队列中继续取消息，直到队列为空或达到字节数、消息数上限
+     * 设置了等待时间时，队列为空后再等待一段时间
+     * @param bytes 第一条消息的字节数
+     */
+    private void collectBatch(int bytes) throws InterruptedException {
+        int count = 1;
+        long deadline = lingerNanos > 0 ? System.nanoTime() + lingerNanos : 0;
+        while (count < maxWriteCount && bytes < maxWriteBytes) {
+            int size = takeWrite(maxWriteBytes - bytes);
+            if (size >= 0) {
+                count++;
+                bytes += size;
+                continue;
+            }
+            // 下一条消息超过字节数上限，留到下次写
+            if (hasPendingWrite()) {
+                return;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (deadline == 0 || remaining <= 0) {
+                return;
+            }
+            awaitWrite(remaining);
+        }
+    }
+
+    /**
+     * 合并写入，只有一条消息时直接写，多条时先复制到同一个缓冲区
+     */
+    private void writeBatch(List<WriteData> batch) throws IOException {
+        if (batch.size() == 1) {
+            ByteBuffer frame = batch.get(0).getFrame();
+            mDataOutputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        } else {
+            int bytes = 0;
+            for (WriteData writeData : batch) {
+                bytes += writeData.getFrame().remaining();
+            }
+            PooledBuffer merged = BufferPool.heap().allocate(bytes);
+            try {
+                ByteBuffer buf = merged.buffer();
+                for (WriteData writeData : batch) {
+                    ByteBuffer frame = writeData.getFrame();
+                    buf.put(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                }
+                mDataOutputStream.write(buf.array(), buf.arrayOffset(), buf.position());
+            } finally {
+                merged.release();
+            }
+        }
+        mDataOutputStream.flush();
+    }
+}
@@ -0,0 +1,20 @@
+package com.innotech.qrpc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 把请求内容直接写入包缓冲区，不经过中间的String或byte[]
+ * 会话恢复重发时会再次调用，两次编码的结果应当相同
+ */
+public interface BodyEncoder {
+    /**
+     * 编码后的字节数
+     */
+    int encodedLength();
+
+    /**
+     * 从dst的position开始写入encodedLength字节，写满到limit
+     * @param dst 大端，limit之后不能写入
+     */
+    void encode(ByteBuffer dst);
+}
@@ -0,0 +1,106 @@
+package com.innotech.qrpc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 写入包体，直接写到包缓冲区，空间不够时从缓冲区池换一个更大的缓冲区
+ * 多字节数字为大端
+ */
+public final class BodyWriter {
+    private PooledBuffer frame;
+    // 包体在缓冲区中的起始位置
+    private final int start;
+
+    /**
+     * @param frame position为包体的起始位置
+     */
+    BodyWriter(PooledBuffer frame) {
+        this.frame = frame;
+        this.start = frame.buffer().position();
+    }
+
+    /**
+     * 已写入的字节数
+     */
+    public int size() {
+        return frame.buffer().position() - start;
+    }
+
+    public BodyWriter writeByte(int b) {
+        ensure(1).put((byte) b);
+        return this;
+    }
+
+    public BodyWriter write(byte[] src) {
+        return write(src, 0, src.length);
+    }
+
+    public BodyWriter write(byte[] src, int offset, int length) {
+        ensure(length).put(src, offset, length);
+        return this;
+    }
+
+    /**
+     * 写入position到limit的内容，不改变src的position
+     */
+    public BodyWriter write(ByteBuffer src) {
+        ensure(src.remaining()).put(src.duplicate());
+        return this;
+    }
+
+    public BodyWriter writeShort(int v) {
+        ensure(2).putShort((short) v);
+        return this;
+    }
+
+    public BodyWriter writeInt(int v) {
+        ensure(4).putInt(v);
+        return this;
+    }
+
+    public BodyWriter writeLong(long v) {
+        ensure(8).putLong(v);
+        return this;
+    }
+
+    public BodyWriter writeDouble(double v) {
+        ensure(8).putDouble(v);
+        return this;
+    }
+
+    /**
+     * UTF-8编码写入，不写长度
+     */
+    public BodyWriter writeUtf8(CharSequence s) {
+        return writeUtf8(s, 0, s.length());
+    }
+
+    /**
+     * UTF-8编码start到end的字符，不写长度
+     */
+    public BodyWriter writeUtf8(CharSequence s, int start, int end) {
+        ByteBuffer data = ensure(Utf8.encodedLength(s, start, end));
+        int p = Utf8.encode(s, start, end, data.array(), data.arrayOffset() + data.position());
+        data.position(p - data.arrayOffset());
+        return this;
+    }
+
+    /**
+     * 保证还能写入n字节
+     */
+    private ByteBuffer ensure(int n) {
+        ByteBuffer data = frame.buffer();
+        if (data.remaining() < n) {
+            frame = BufferPool.heap().reallocate(frame, data.position() + n);
+            data = frame.buffer();
+        }
+        return data;
+    }
+
+    /**
+     * 写完后的包缓冲区，position为包的结尾
+     */
+    PooledBuffer frame() {
+        return frame;
+    }
+}
@@ -0,0 +1,194 @@
+package com.innotech.qrpc;
+
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓冲区池
+ * 按2的幂划分容量等级，每个等级缓存固定字节数以内的缓冲区，超过最大等级的缓冲区不缓存
+ * 调试模式下检测未release就被回收的缓冲区
+ */
+public final class BufferPool {
+    // 最小等级 256B
+    private static final int MIN_SHIFT = 8;
+    // 最大等级 1MB
+    private static final int MAX_SHIFT = 20;
+    // 每个等级最多缓存的字节数
+    private static final int MAX_CACHED_BYTES_PER_CLASS = 1024 * 1024;
+
+    private static final BufferPool HEAP = new BufferPool(false);
+    private static final BufferPool DIRECT = new BufferPool(true);
+
+    private final boolean direct;
+    private final SizeClass[] sizeClasses;
+    private final AtomicLong hitCount;
+    private final AtomicLong missCount;
+    // 泄漏检测
+    private final ReferenceQueue<PooledBuffer> leakQueue;
+    private final Set<LeakTracker> leakTrackers;
+
+    /**
+     * 堆内存缓冲区池，收发的包默认使用
+     */
+    public static BufferPool heap() {
+        return HEAP;
+    }
+
+    /**
+     * 直接内存缓冲区池
+     */
+    public static BufferPool direct() {
+        return DIRECT;
+    }
+
+    private BufferPool(boolean direct) {
+        this.direct = direct;
+        this.sizeClasses = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            int size = 1 << (MIN_SHIFT + i);
+            sizeClasses[i] = new SizeClass(size, Math.max(1, MAX_CACHED_BYTES_PER_CLASS / size));
+        }
+        this.hitCount = new AtomicLong();
+        this.missCount = new AtomicLong();
+        this.leakQueue = new ReferenceQueue<>();
+        this.leakTrackers = Collections.synchronizedSet(new HashSet<LeakTracker>());
+    }
+
+    /**
+     * 获取容量不小于capacity的缓冲区，position为0，limit为容量
+     * 使用完后需要调用release
+     */
+    public PooledBuffer allocate(int capacity) {
+        reportLeaks();
+        int index = sizeClassIndex(capacity);
+        PooledBuffer buf = null;
+        if (index < sizeClasses.length) {
+            buf = sizeClasses[index].poll();
+        }
+        if (buf != null) {
+            hitCount.incrementAndGet();
+            buf.reuse();
+        } else {
+            missCount.incrementAndGet();
+            int size = index < sizeClasses.length ? sizeClasses[index].size : capacity;
+            ByteBuffer byteBuffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            buf = new PooledBuffer(this, byteBuffer, index < sizeClasses.length ? index : -1);
+        }
+        if (LogUtils.isDebug()) {
+            buf.leakTracker = new LeakTracker(buf, leakQueue);
+            leakTrackers.add(buf.leakTracker);
+        }
+        return buf;
+    }
+
+    /**
+     * 扩容，把old中已写入的数据(0到position)复制到新缓冲区，并释放old
+     * @return 容量不小于minCapacity的缓冲区，position为已写入的长度
+     */
+    public PooledBuffer reallocate(PooledBuffer old, int minCapacity) {
+        ByteBuffer src = old.buffer();
+        if (src.capacity() >= minCapacity) {
+            return old;
+        }
+        PooledBuffer buf = allocate(Math.max(minCapacity, src.capacity() << 1));
+        src.flip();
+        buf.buffer().put(src);
+        old.release();
+        return buf;
+    }
+
+    /**
+     * 引用计数为0时放回池中
+     */
+    void recycle(PooledBuffer buf) {
+        LeakTracker tracker = buf.leakTracker;
+        if (tracker != null) {
+            buf.leakTracker = null;
+            leakTrackers.remove(tracker);
+            tracker.clear();
+        }
+        if (buf.sizeClass >= 0) {
+            sizeClasses[buf.sizeClass].offer(buf);
+        }
+    }
+
+    // 命中缓存的次数
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    // 未命中缓存、新建缓冲区的次数
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    private static int sizeClassIndex(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    private void reportLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+            if (leakTrackers.remove(tracker)) {
+                LogUtils.e("PooledBuffer未release就被回收，分配位置:" + Log.getStackTraceString(tracker.allocation));
+                IMReport.getInstance().report("PooledBuffer未release就被回收");
+            }
+        }
+    }
+
+    /**
+     * 单个等级的空闲缓冲区栈
+     */
+    private static final class SizeClass {
+        private final int size;
+        private final PooledBuffer[] stack;
+        private int count;
+
+        SizeClass(int size, int maxCount) {
+            this.size = size;
+            this.stack = new PooledBuffer[maxCount];
+        }
+
+        synchronized PooledBuffer poll() {
+            if (count == 0) {
+                return null;
+            }
+            PooledBuffer buf = stack[--count];
+            stack[count] = null;
+            return buf;
+        }
+
+        synchronized void offer(PooledBuffer buf) {
+            if (count < stack.length) {
+                stack[count++] = buf;
+            }
+        }
+    }
+
+    /**
+     * 记录分配位置，缓冲区被回收时如果还未release则视为泄漏
+     */
+    static final class LeakTracker extends WeakReference<PooledBuffer> {
+        private final Throwable allocation;
+
+        LeakTracker(PooledBuffer referent, ReferenceQueue<PooledBuffer> queue) {
+            super(referent, queue);
+            this.allocation = new Throwable("PooledBuffer allocation");
+        }
+    }
+}
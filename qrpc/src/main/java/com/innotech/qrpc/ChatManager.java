@@ -1,20 +1,27 @@
 package com.innotech.qrpc;
 
-import android.os.Handler;
-import android.os.Message;
-
 import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.GZIPInputStream;
 
 public class ChatManager {
     /**
@@ -24,6 +31,55 @@ public class ChatManager {
     public static final int LOGIN_SUCCESS = 1; // 登录成功状态
     public static final int LOGIN_FAIL = 2; // 登录失败状态
 
+    /**
+     * 传输方式
+     */
+    public static final int TRANSPORT_BIO = 0; // 阻塞IO，每个连接独立的读/写线程
+    public static final int TRANSPORT_NIO = 1; // 非阻塞IO，所有连接共享一个事件循环线程
+
+    /**
+     * 写队列超过容量时的处理方式
+     */
+    public static final int OVERFLOW_BLOCK = 0; // 发送线程等待，超时后按发送失败处理
+    public static final int OVERFLOW_FAIL_FAST = 1; // 直接按发送失败处理，回调SendErrorReceiver
+    public static final int OVERFLOW_DROP_OLDEST = 2; // 丢弃优先级最低的最早的消息，被丢弃的消息回调SendErrorReceiver
+
+    /**
+     * 发送优先级，高优先级的消息不排在低优先级的消息后面
+     */
+    public static final int PRIORITY_CONTROL = 0; // 登录、ack等控制消息
+    public static final int PRIORITY_INTERACTIVE = 1; // 用户操作触发的消息，未设置优先级的指令默认为此级别
+    public static final int PRIORITY_BULK = 2; // 同步等大量数据
+
+    /**
+     * 优先级调度方式
+     */
+    public static final int SCHEDULE_WEIGHTED = 0; // 加权轮询，每轮按权重从各优先级取消息，高优先级先取
+    public static final int SCHEDULE_STRICT = 1; // 严格优先级，低优先级连续被跳过过多时插入一条，不会饿死
+
+    /**
+     * 多连接时请求的分配方式
+     */
+    public static final int STRIPE_BY_COMMAND = 0; // 按指令分配，同一指令的请求总是走同一个连接，保持顺序
+    public static final int STRIPE_LEAST_OUTSTANDING = 1; // 分配给等待回包的请求最少的连接
+
+    // 请求默认超时时间 30s
+    public static final long DEFAULT_REQUEST_TIMEOUT = 30 * 1000;
+    // 重连默认退避时间 1s，最大 30s
+    public static final long DEFAULT_RECONNECT_BASE_DELAY = 1000;
+    public static final long DEFAULT_RECONNECT_MAX_DELAY = 30 * 1000;
+    // 每个地址默认连接超时时间 10s，依次发起连接的间隔 250ms
+    public static final long DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    public static final long DEFAULT_CONNECT_STAGGER = 250;
+    // 地址迁移：两个地址至少有10个往返时间样本，两次迁移至少间隔60s，旧连接最多等待10s回包
+    private static final int MIGRATION_MIN_SAMPLES = 10;
+    private static final long MIGRATION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long DRAIN_TIMEOUT_MILLIS = 10 * 1000;
+    // 批量回调在处理线程池中使用同一个key，保证批次的顺序
+    private static final Object BATCH_DISPATCH_KEY = new Object();
+    // 心跳默认超时时间 10s
+    public static final long DEFAULT_HEARTBEAT_TIMEOUT = 10 * 1000;
+
     public static IAppEnvironment iAppEnvironment;
     // 重连次数，默认5次
     private int totalReconnectTime = 5;
@@ -34,34 +90,101 @@ public class ChatManager {
     // 登录状态
     private int loginState;
     private static ChatManager instance;
-    private Socket mSocket;
-    //socket输入流
-    private InputStream mInputStream;
-    //socket输出流
-    private DataOutputStream mDataOutputStream;
-    // read线程
-    private Thread readThread;
-    // write线程
-    private Thread writeThread;
-    // 是否结束写线程
-    private AtomicBoolean stopWrite;
-    /**
-     * write LinksocketThreadedBlockingQueue
-     * 要写给服务端的信息先放入Queue中，再从Queue中取出进行处理
-     * 防止多线程同时写产生批量写失败
-     */
-    private LinkedBlockingQueue<WriteData> writeQueue;
-    //
+    // 传输方式，默认阻塞IO
+    private int transportMode = TRANSPORT_BIO;
+    // 当前连接，多连接时为第一个连接
+    private volatile Transport transport;
+    // 同一地址的全部连接，包括transport
+    private volatile Transport[] stripes = new Transport[0];
+    // 连接数和请求分配方式
+    private int stripeCount = 1;
+    private int stripePolicy = STRIPE_BY_COMMAND;
+    // 最后一次回调WritabilityListener的状态
+    private final AtomicBoolean reportedWritable = new AtomicBoolean(true);
+    // 合并写参数
+    private int maxWriteBytes = Transport.DEFAULT_MAX_WRITE_BYTES;
+    private int maxWriteCount = Transport.DEFAULT_MAX_WRITE_COUNT;
+    private int lingerMicros;
+    // 写队列容量和高低水位
+    private int lowWaterMark = Transport.DEFAULT_LOW_WATER_MARK;
+    private int highWaterMark = Transport.DEFAULT_HIGH_WATER_MARK;
+    private int writeBufferCapacity = Transport.DEFAULT_WRITE_BUFFER_CAPACITY;
+    private int overflowPolicy = OVERFLOW_FAIL_FAST;
+    private long blockTimeoutMillis = Transport.DEFAULT_BLOCK_TIMEOUT_MILLIS;
+    // 指令优先级和调度方式
+    private final CommandPriorities commandPriorities = new CommandPriorities(PRIORITY_INTERACTIVE);
+    private int scheduling = SCHEDULE_WEIGHTED;
+    private int[] laneWeights = Transport.DEFAULT_LANE_WEIGHTS;
+    // 同一时间只有一次重连
     private LinkedBlockingQueue<Boolean> reconnectQueue;
+    // 重连退避
+    private ReconnectBackoff reconnectBackoff;
+    // 等待中的延迟重连
+    private ScheduledFuture<?> pendingReconnect;
     // 记录发送的信息
-    private ConcurrentHashMap<Long, WriteData> requestInfoMap;
-    // 处理socket操作
-    private SocketHandler sHandler;
+    private LongObjectMap<WriteData> requestInfoMap;
+    // 请求超时
+    private HashedTimingWheel requestTimer;
+    // 请求默认超时时间
+    private long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT;
+    // 控制线程，执行重连、断开处理、心跳检查等任务，不依赖主线程Looper
+    private ScheduledExecutorService controlExecutor;
+    // 心跳指令，小于等于0表示不发送心跳
+    private int heartbeatCommand;
+    private long foregroundHeartbeatMillis;
+    private long backgroundHeartbeatMillis;
+    private long heartbeatTimeoutMillis = DEFAULT_HEARTBEAT_TIMEOUT;
+    private volatile boolean appForeground = true;
+    // 发件箱和需要保存的指令，按指令升序排列
+    private volatile Outbox outbox;
+    private volatile int[] outboxCommands = new int[0];
+    // 会话恢复的握手和令牌
+    private volatile SessionResumer sessionResumer;
+    private volatile String resumeToken;
+    // 断开时保留的等待回包的请求，按发送顺序排列，恢复失败时全部失败
+    private final List<WriteData> suspendedRequests = new ArrayList<>();
+    // 断开前的登录状态，恢复成功后还原
+    private int resumeLoginState = LOGIN_DEFAULT;
+    // 每次连接成功加1，忽略旧连接的握手结果
+    private int connectGeneration;
+    // 当前连接的心跳，每个连接一个
+    private final List<Heartbeat> heartbeats = new ArrayList<>();
 
     private StatusReceiver statusReceiver;
     private SendErrorReceiver sendErrorReceiver;
     private CmdRespReceiver cmdRespReceiver;
+    // 按指令注册的处理器和未注册指令的处理器
+    private final CommandTable<CommandHandler> commandHandlers = new CommandTable<>();
+    private volatile CommandHandler fallbackHandler;
+    // 按指令注册的编解码器
+    private final CommandTable<CommandCodec> commandCodecs = new CommandTable<>();
+    // 回包的处理线程池，为null时在读线程中处理
+    private volatile OrderedDispatcher responseDispatcher;
+    private volatile DispatchKeySelector dispatchKeySelector;
+    // 包体达到该字节数时gzip压缩，小于等于0表示不压缩
+    private volatile int compressionThreshold;
+    // 发送时使用的预置字典版本，小于0表示不使用；包体达到该字节数时使用
+    private volatile int dictionaryVersion = -1;
+    private volatile int dictionaryMinBytes;
+    // 批量回调，为null时逐个回调
+    private volatile ResponseBatcher responseBatcher;
+    private volatile BatchListener batchListener;
+    // 批量回调时间窗口的定时线程，第一次设置时间窗口时创建；到期的一批可能在该线程中回调，不使用控制线程
+    private ScheduledExecutorService batchTimer;
     private IpAddressProvider ipAddressProvider;
+    // 多地址连接
+    private EndpointConnector endpointConnector;
+    // 每个地址的往返时间
+    private final EndpointStats endpointStats = new EndpointStats();
+    // 往返时间变差时迁移到更快的地址
+    private volatile boolean migrationEnabled;
+    private double migrationRatio = 2;
+    private long migrationMinGapNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private volatile long lastMigrationNanos = System.nanoTime() - MIGRATION_INTERVAL_NANOS;
+    private final AtomicBoolean migrating = new AtomicBoolean(false);
+    // 迁移后等待请求回包的旧连接
+    private final CopyOnWriteArrayList<Transport> drainingTransports = new CopyOnWriteArrayList<>();
+    private WritabilityListener writabilityListener;
 
     public static ChatManager getInstance() {
         if (instance == null) {
@@ -75,432 +198,1414 @@ public class ChatManager {
     }
 
     /**
-     * 创建对象
-     * 初始化参数
+     * 创建对象
+     * 初始化参数
+     */
+    private ChatManager() {
+        socket_state = SocketState.STATE_DEFAULT;
+        reconnectQueue = new LinkedBlockingQueue<>(1);
+        requestInfoMap = new LongObjectMap<>();
+        requestTimer = new HashedTimingWheel(100, TimeUnit.MILLISECONDS, 512, "qrpc-timeout");
+        reconnectBackoff = new ReconnectBackoff(DEFAULT_RECONNECT_BASE_DELAY, DEFAULT_RECONNECT_MAX_DELAY);
+        endpointConnector = new EndpointConnector(TimeUnit.MILLISECONDS.toNanos(DEFAULT_CONNECT_TIMEOUT),
+                TimeUnit.MILLISECONDS.toNanos(DEFAULT_CONNECT_STAGGER));
+        controlExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "qrpc-control");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 在控制线程中检测长连接的状态，如果非正常连接状态，则建立连接
+     * 重连之前需要检测读/写线程是否都关闭掉了，socket是否close掉了。
+     */
+    private final Runnable connectTask = new Runnable() {
+        @Override
+        public void run() {
+            final boolean[] isFail = {false};
+            synchronized (ChatManager.this) {
+                pendingReconnect = null;
+            }
+            try {
+                // 检测长连接状态
+                if (socket_state != SocketState.STATE_CONNECTION) {
+                    if (ipAddressProvider instanceof MultiIpAddressProvider) {
+                        ((MultiIpAddressProvider) ipAddressProvider).getAddresses(re_connect_time, new TCallback<List<IpAddress>>() {
+                            @Override
+                            public void onSuccess(List<IpAddress> s) {
+                                if (!connect(s)) {
+                                    isFail[0] = true;
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(String msg) {
+                                isFail[0] = true;
+                            }
+                        });
+                    } else {
+                        ipAddressProvider.getAddress(re_connect_time, new TCallback<IpAddress>() {
+                            @Override
+                            public void onSuccess(IpAddress s) {
+                                if (!connect(Collections.singletonList(s))) {
+                                    isFail[0] = true;
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(String msg) {
+                                isFail[0] = true;
+                            }
+                        });
+                    }
+                }
+            } catch (Exception e) {
+                isFail[0] = true;
+                LogUtils.e("方法:initSocket,run exception:" + e.getMessage());
+                IMReport.getInstance().report("方法:initSocket,run exception:" + e.getMessage());
+            } finally {
+                reconnectQueue.poll();
+                if (isFail[0]) {
+                    LogUtils.e("获取长连接出现异常，进行重连");
+                    IMReport.getInstance().report("获取长连接出现异常，进行重连");
+                    endSocketReConnect();
+                }
+            }
+        }
+    };
+
+    /**
+     * 连接异常，在控制线程中重置连接
+     * 同一连接的读写线程、心跳超时可能各报告一次，只处理仍是当前连接的第一次
+     */
+    private void postDisconnect(final Transport t) {
+        controlExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatManager.this) {
+                    if (!isActive(t)) {
+                        return;
+                    }
+                    if (loginState != LOGIN_DEFAULT) {
+                        resumeLoginState = loginState;
+                    }
+                    setLoginState(LOGIN_DEFAULT);
+                    endSocketReConnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * 延迟delayMillis后在控制线程中重连，已有等待中或进行中的重连时忽略
+     * @return 是否提交了新的重连
+     */
+    private synchronized boolean scheduleReconnect(long delayMillis) {
+        if (reconnectQueue.offer(true)) {
+            pendingReconnect = controlExecutor.schedule(connectTask, delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 结束长连接
+     */
+    public synchronized void endSocket() {
+        endSocket(false);
+    }
+
+    /**
+     * @param suspend 保留等待回包的请求，重连后恢复会话
+     */
+    private synchronized void endSocket(boolean suspend) {
+        socket_state = SocketState.STATE_DISCONNECT;
+        stopHeartbeats();
+        // 关闭连接，处理写队列中的内容
+        Transport[] closing = stripes;
+        stripes = new Transport[0];
+        transport = null;
+        for (Transport t : closing) {
+            closeTransport(t, suspend);
+        }
+        for (Transport t : drainingTransports) {
+            closeDrained(t);
+        }
+        if (suspend) {
+            suspendRequests();
+        } else {
+            suspendedRequests.clear();
+            failInflightRequests("长连接断开");
+        }
+    }
+
+    private void closeTransport(Transport t) {
+        closeTransport(t, false);
+    }
+
+    /**
+     * @param suspend 保留的请求由会话恢复决定是否重发，不回调SendErrorReceiver
+     */
+    private void closeTransport(Transport t, boolean suspend) {
+        List<WriteData> dataList = t.close();
+        for (WriteData data : dataList) {
+            if (suspend && requestInfoMap.get(data.getRequestId()) == data) {
+                continue;
+            }
+            // 已保存到发件箱的消息重连后重发
+            if (sendErrorReceiver != null && !data.isPersisted()) {
+                sendErrorReceiver.onSendError(data.getCommand(), data);
+            }
+        }
+    }
+
+    // 结束长连接，尝试重连
+    private synchronized void endSocketReConnect() {
+        endSocket(sessionResumer != null && resumeToken != null);
+        notifyDisconnect();
+    }
+
+    /**
+     * 建立长连接，开始收发数据
+     * @param addresses 按优先顺序排列的地址，并行连接，使用最先成功的连接
+     * @return 全部地址连接失败时返回false
+     */
+    private boolean connect(List<IpAddress> addresses) {
+        List<Transport> created = new ArrayList<>();
+        EndpointConnector.Result connected = null;
+        try {
+            // 建立长连接
+            connected = endpointConnector.connect(addresses);
+            IpAddress ipAddress = connected.address;
+            created.add(newTransport(connected));
+            connected = null;
+            // 多连接模式下，其余连接使用同一地址
+            List<IpAddress> winner = Collections.singletonList(ipAddress);
+            for (int i = 1; i < stripeCount; i++) {
+                connected = endpointConnector.connect(winner);
+                created.add(newTransport(connected));
+                connected = null;
+            }
+            LogUtils.eDebug("Successful connection to the server(" + ipAddress.getIp() + ":" + ipAddress.getPort() + ")");
+            LogUtils.e("Successful connection to the server");
+            List<ByteBuffer> unacked = null;
+            boolean resuming;
+            int generation;
+            synchronized (this) {
+                // 之后发送的消息直接走新连接，只重发之前保存的
+                Outbox box = outbox;
+                if (box != null) {
+                    unacked = box.pendingFrames();
+                }
+                stripes = created.toArray(new Transport[created.size()]);
+                transport = stripes[0];
+                reportedWritable.set(true);
+                socket_state = SocketState.STATE_CONNECTION;
+                // 开始读/写
+                for (Transport t : stripes) {
+                    t.start();
+                }
+                startHeartbeats();
+                generation = ++connectGeneration;
+                resuming = sessionResumer != null && resumeToken != null;
+                if (!resuming) {
+                    failSuspendedRequests("长连接断开");
+                }
+            }
+            if (resuming) {
+                startResume(generation, unacked);
+            } else {
+                notifyConnect();
+                if (unacked != null) {
+                    replayOutbox(unacked, null);
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            for (Transport t : created) {
+                t.close();
+            }
+            if (connected != null) {
+                try {
+                    connected.channel.close();
+                } catch (IOException ignored) {
+                    //
+                }
+            }
+            LogUtils.e("方法:connect, 异常:" + e.getMessage());
+            IMReport.getInstance().report("方法:connect, 异常:" + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 按当前设置创建连接
+     */
+    private Transport newTransport(EndpointConnector.Result connected) throws IOException {
+        Transport t;
+        if (transportMode == TRANSPORT_NIO) {
+            t = new NioTransport(NioEventLoop.getDefault(), transportListener);
+        } else {
+            t = new BioTransport(transportListener);
+        }
+        t.setWriteCoalescing(maxWriteBytes, maxWriteCount, TimeUnit.MICROSECONDS.toNanos(lingerMicros));
+        t.setWriteBufferLimits(lowWaterMark, highWaterMark, writeBufferCapacity);
+        t.setOverflowPolicy(overflowPolicy, TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis));
+        t.setLaneScheduling(scheduling, laneWeights);
+        t.setEndpoint(connected.address);
+        try {
+            t.connect(connected.channel);
+        } catch (IOException e) {
+            t.close();
+            throw e;
+        }
+        return t;
+    }
+
+    /**
+     * 迁移到更快的地址
+     * 新请求走新连接，旧连接等待已发送的请求回包后关闭，迁移后回调StatusReceiver.onConnect
+     */
+    private void migrate(IpAddress target) {
+        EndpointConnector.Result connected = null;
+        Transport t = null;
+        try {
+            connected = endpointConnector.connect(Collections.singletonList(target));
+            t = newTransport(connected);
+            synchronized (this) {
+                Transport old = transport;
+                if (socket_state != SocketState.STATE_CONNECTION || old == null) {
+                    t.close();
+                    return;
+                }
+                transport = t;
+                stripes = new Transport[]{t};
+                t.start();
+                startHeartbeats();
+                drain(old);
+            }
+            LogUtils.e("迁移到更快的地址:" + target.getIp() + ":" + target.getPort());
+            notifyConnect();
+        } catch (Exception e) {
+            if (t != null) {
+                t.close();
+            } else if (connected != null) {
+                try {
+                    connected.channel.close();
+                } catch (IOException ignored) {
+                    //
+                }
+            }
+            LogUtils.e("方法:migrate,异常:" + e.getMessage());
+            IMReport.getInstance().report("方法:migrate,异常:" + e.getMessage());
+        } finally {
+            lastMigrationNanos = System.nanoTime();
+            migrating.set(false);
+        }
+    }
+
+    /**
+     * 旧连接没有等待回包的请求时立即关闭，否则最多等待DRAIN_TIMEOUT_MILLIS
+     */
+    private void drain(final Transport old) {
+        drainingTransports.add(old);
+        if (old.getOutstanding() <= 0) {
+            closeDrained(old);
+            return;
+        }
+        controlExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeDrained(old);
+            }
+        }, DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeDrained(Transport t) {
+        if (drainingTransports.remove(t)) {
+            closeTransport(t);
+        }
+    }
+
+    /**
+     * 收到请求的回包，记录往返时间，需要时迁移到更快的地址
+     */
+    private void recordRtt(WriteData writeData) {
+        Transport t = writeData.getTransport();
+        long written = writeData.getWrittenNanos();
+        if (t == null || t.getEndpoint() == null || written == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        endpointStats.record(t.getEndpoint(), now - written);
+        // 多连接模式下不迁移
+        if (!migrationEnabled || t != transport || stripes.length != 1
+                || now - lastMigrationNanos < MIGRATION_INTERVAL_NANOS) {
+            return;
+        }
+        final IpAddress target = endpointStats.findFaster(t.getEndpoint(), migrationRatio, migrationMinGapNanos, MIGRATION_MIN_SAMPLES);
+        if (target != null && migrating.compareAndSet(false, true)) {
+            controlExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    migrate(target);
+                }
+            });
+        }
+    }
+
+    /**
+     * 当前连接，包括多连接模式下的每个连接
+     */
+    private boolean isActive(Transport t) {
+        for (Transport stripe : stripes) {
+            if (stripe == t) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 多连接模式下按分配方式选出发送请求的连接
+     */
+    private Transport selectTransport(int cmd) {
+        Transport[] current = stripes;
+        if (current.length <= 1) {
+            return transport;
+        }
+        if (stripePolicy == STRIPE_BY_COMMAND) {
+            return current[((cmd * 0x9E3779B9) >>> 1) % current.length];
+        }
+        Transport best = current[0];
+        for (int i = 1; i < current.length; i++) {
+            if (current[i].getOutstanding() < best.getOutstanding()) {
+                best = current[i];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 记录发送的请求
+     */
+    private void registerRequest(WriteData writeData, Transport t) {
+        writeData.setTransport(t);
+        t.incrementOutstanding();
+        requestInfoMap.put(writeData.getRequestId(), writeData);
+    }
+
+    /**
+     * 请求从记录中移除后调用，迁移中的旧连接没有等待回包的请求时关闭
+     */
+    private void onRequestRemoved(WriteData writeData) {
+        Transport t = writeData.getTransport();
+        if (t != null && t.decrementOutstanding() <= 0 && drainingTransports.contains(t)) {
+            final Transport drained = t;
+            controlExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeDrained(drained);
+                }
+            });
+        }
+    }
+
+    private final Transport.Listener transportListener = new Transport.Listener() {
+        @Override
+        public void onFrame(Transport t, long requestId, int flags, int command, ByteBuffer body) {
+            if (!isActive(t) && !drainingTransports.contains(t)) {
+                return;
+            }
+            handleFrame(requestId, flags, command, body);
+            re_connect_time = 0;
+        }
+
+        @Override
+        public void onReadComplete(Transport t) {
+            ResponseBatcher batcher = responseBatcher;
+            if (batcher != null) {
+                batcher.readComplete();
+            }
+        }
+
+        @Override
+        public void onWritten(Transport t, WriteData data) {
+            re_connect_time = 0;
+        }
+
+        @Override
+        public void onDropped(Transport t, WriteData data) {
+            if (requestInfoMap.remove(data.getRequestId(), data)) {
+                onRequestRemoved(data);
+            }
+            LogUtils.e("写队列已满，丢弃消息 cmd:" + data.getCommand());
+            if (sendErrorReceiver != null && !data.isPersisted()) {
+                sendErrorReceiver.onSendError(data.getCommand(), data);
+            }
+            if (data.getFuture() != null) {
+                data.getFuture().fail("写队列已满，消息被丢弃");
+            }
+        }
+
+        @Override
+        public void onWritabilityChanged(Transport t, boolean writable) {
+            WritabilityListener l = writabilityListener;
+            if (!isActive(t) || l == null) {
+                return;
+            }
+            // 多连接时全部连接可写才算可写
+            boolean current = isWritable();
+            if (reportedWritable.compareAndSet(!current, current)) {
+                l.onWritabilityChanged(current);
+            }
+        }
+
+        @Override
+        public void onError(Transport t, String reason) {
+            LogUtils.e(reason);
+            IMReport.getInstance().report(reason);
+            // 已被替换的连接不再触发重连，多连接时任一连接异常都重置全部连接
+            if (isActive(t)) {
+                postDisconnect(t);
+            } else if (drainingTransports.contains(t)) {
+                final Transport drained = t;
+                controlExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeDrained(drained);
+                    }
+                });
+            }
+        }
+    };
+
+    private final Heartbeat.Listener heartbeatListener = new Heartbeat.Listener() {
+        @Override
+        public void onPing(Transport t) {
+            sendPing(t);
+        }
+
+        @Override
+        public void onTimeout(Transport t, String reason) {
+            // 按连接异常处理
+            transportListener.onError(t, reason);
+        }
+    };
+
+    /**
+     * 为当前的每个连接开始心跳
+     */
+    private synchronized void startHeartbeats() {
+        stopHeartbeats();
+        long interval = appForeground ? foregroundHeartbeatMillis : backgroundHeartbeatMillis;
+        if (heartbeatCommand <= 0 || interval <= 0) {
+            return;
+        }
+        for (Transport t : stripes) {
+            Heartbeat heartbeat = new Heartbeat(controlExecutor, t, heartbeatListener,
+                    TimeUnit.MILLISECONDS.toNanos(interval), TimeUnit.MILLISECONDS.toNanos(heartbeatTimeoutMillis));
+            heartbeats.add(heartbeat);
+            heartbeat.start();
+        }
+    }
+
+    private synchronized void stopHeartbeats() {
+        for (Heartbeat heartbeat : heartbeats) {
+            heartbeat.stop();
+        }
+        heartbeats.clear();
+    }
+
+    /**
+     * 发送心跳包，不记录请求，回包不回调CmdRespReceiver
+     */
+    private void sendPing(Transport t) {
+        WriteData ping = new WriteData(heartbeatCommand, null);
+        ping.setPriority(PRIORITY_CONTROL);
+        try {
+            if (!t.write(ping)) {
+                ping.releaseFrame();
+            }
+        } catch (Exception e) {
+            ping.releaseFrame();
+            LogUtils.e("方法:sendPing,异常:" + e.getMessage());
+        }
+    }
+
+    /**
+     * 处理服务端回包
+     * @param flags 标志位
+     * @param command 3字节命令
+     * @param body 包体，只在本方法内有效
+     */
+    private void handleFrame(long requestId, int flags, int command, ByteBuffer body) {
+        // 心跳回包只用于刷新读空闲时间
+        if (heartbeatCommand > 0 && command == heartbeatCommand) {
+            return;
+        }
+        // 服务端已处理，从发件箱中移除；请求可能已超时，不依赖请求记录
+        Outbox box = outbox;
+        if (box != null) {
+            box.ack(requestId);
+        }
+        // 匹配发送时的信息
+        WriteData writeData = requestInfoMap.remove(requestId);
+        if (writeData != null) {
+            onRequestRemoved(writeData);
+            recordRtt(writeData);
+        }
+        // 没有注册处理器的回包合并后批量回调
+        ResponseBatcher batcher = responseBatcher;
+        if (batcher != null && commandHandlers.get(command) == null) {
+            batcher.add(Response.copyOf(requestId, flags, command, writeData, body));
+            return;
+        }
+        OrderedDispatcher dispatcher = responseDispatcher;
+        if (dispatcher == null) {
+            Response response = new Response(requestId, flags, command, writeData, body);
+            try {
+                deliver(response);
+            } finally {
+                response.release();
+            }
+            return;
+        }
+        final Response response = Response.copyOf(requestId, flags, command, writeData, body);
+        dispatcher.dispatch(dispatchKey(response), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deliver(response);
+                } finally {
+                    response.release();
+                }
+            }
+        });
+    }
+
+    private final ResponseBatcher.Sink batchSink = new ResponseBatcher.Sink() {
+        @Override
+        public void deliver(final List<Response> batch) {
+            OrderedDispatcher dispatcher = responseDispatcher;
+            if (dispatcher == null) {
+                deliverBatch(batch);
+                return;
+            }
+            dispatcher.dispatch(BATCH_DISPATCH_KEY, new Runnable() {
+                @Override
+                public void run() {
+                    deliverBatch(batch);
+                }
+            });
+        }
+    };
+
+    /**
+     * 解压gzip包体，损坏的包不交给处理器，对应的请求失败
+     */
+    private boolean inflate(Response response) {
+        if (response.inflate()) {
+            return true;
+        }
+        WriteData writeData = response.getRequest();
+        if (writeData != null && writeData.getFuture() != null) {
+            writeData.getFuture().fail("回包解压失败");
+        }
+        return false;
+    }
+
+    /**
+     * 先逐个完成请求结果，再回调整批
+     */
+    private void deliverBatch(List<Response> batch) {
+        try {
+            Iterator<Response> iterator = batch.iterator();
+            while (iterator.hasNext()) {
+                Response response = iterator.next();
+                if (!inflate(response)) {
+                    response.release();
+                    iterator.remove();
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (Response response : batch) {
+                WriteData writeData = response.getRequest();
+                if (writeData != null && writeData.getFuture() != null) {
+                    writeData.getFuture().complete(response);
+                }
+            }
+            BatchListener listener = batchListener;
+            if (listener != null) {
+                listener.onBatch(Collections.unmodifiableList(batch));
+            }
+        } finally {
+            for (Response response : batch) {
+                response.release();
+            }
+        }
+    }
+
+    /**
+     * 回包的顺序key，默认为指令
+     */
+    private Object dispatchKey(Response response) {
+        DispatchKeySelector selector = dispatchKeySelector;
+        if (selector == null) {
+            return response.getCommand();
+        }
+        try {
+            return selector.keyOf(response);
+        } catch (Exception e) {
+            LogUtils.e("方法:dispatchKey,异常:" + e.getMessage());
+            return response.getCommand();
+        }
+    }
+
+    /**
+     * 完成请求结果，再交给处理器
+     */
+    private void deliver(Response response) {
+        if (!inflate(response)) {
+            return;
+        }
+        WriteData writeData = response.getRequest();
+        if (writeData != null && writeData.getFuture() != null) {
+            writeData.getFuture().complete(response);
+        }
+        dispatch(response);
+    }
+
+    /**
+     * 按指令交给注册的处理器，未注册时交给默认处理器，都没有时交给CmdRespReceiver
+     */
+    private void dispatch(Response response) {
+        CommandHandler handler = commandHandlers.get(response.getCommand());
+        if (handler == null) {
+            handler = fallbackHandler;
+        }
+        if (handler != null) {
+            handler.onResponse(response);
+        } else if (cmdRespReceiver != null) {
+            cmdRespReceiver.onResponse(response.getCommand(), response.getRequest(), response.getJson());
+        }
+    }
+
+    public void sendJsonToServer(int cmd, String json) {
+        sendJsonToServer(cmd, json, null);
+    }
+
+    /**
+     * 发送数据
+     * @param cmd 指令码
+     * @param json json格式数据
+     * @param callback 成功或者失败回调，超时时间为setRequestTimeout设置的时间
+     */
+    public void sendJsonToServer(int cmd, String json, TCallback<String> callback) {
+        sendRequest(cmd, json, requestTimeoutMillis, callback);
+    }
+
+    /**
+     * 发送请求
+     * 收到回包时callback.onSuccess；发送失败、超时、连接断开时callback.onFailure，并从请求记录中移除
+     * @param cmd 指令码
+     * @param json json格式数据
+     * @param timeoutMillis 超时时间(毫秒)，小于等于0表示不超时
+     * @param callback 成功或者失败回调，可以为null
+     * @return 请求结果
+     */
+    public RequestFuture sendRequest(int cmd, String json, long timeoutMillis, TCallback<String> callback) {
+        LogUtils.eDebug("send " + json + " to server with cmd " + cmd);
+        WriteData writeData = new WriteData(cmd, json, callback);
+        return send(writeData, new RequestFuture(writeData, callback), timeoutMillis);
+    }
+
+    /**
+     * 发送二进制请求，内容直接复制到包缓冲区，不经过String
+     * 回包复制为byte[]回调，不解码；需要零复制读取回包时用registerHandler注册处理器，通过Response.getBody读取
+     * @param body 请求完成前不能修改，会话恢复重发时再次读取
+     * @param callback 成功或者失败回调，可以为null
+     * @see #sendRequest(int, String, long, TCallback)
+     */
+    public RequestFuture sendBinaryRequest(int cmd, byte[] body, long timeoutMillis, TCallback<byte[]> callback) {
+        return sendBinaryRequest(cmd, ByteBuffer.wrap(body), timeoutMillis, callback);
+    }
+
+    /**
+     * 发送二进制请求
+     * @param body position到limit为内容，不改变position；请求完成前不能修改
+     * @see #sendBinaryRequest(int, byte[], long, TCallback)
+     */
+    public RequestFuture sendBinaryRequest(int cmd, ByteBuffer body, long timeoutMillis, TCallback<byte[]> callback) {
+        WriteData writeData = WriteData.ofBody(cmd, body);
+        return send(writeData, RequestFuture.ofBinary(writeData, callback), timeoutMillis);
+    }
+
+    /**
+     * 发送由编码器直接写入包缓冲区的请求
+     * @param encoder 在调用方线程中编码，会话恢复重发时在控制线程中再次编码；抛出的异常直接抛给调用方
+     * @see #sendBinaryRequest(int, byte[], long, TCallback)
+     */
+    public RequestFuture sendBinaryRequest(int cmd, BodyEncoder encoder, long timeoutMillis, TCallback<byte[]> callback) {
+        WriteData writeData = WriteData.ofEncoder(cmd, encoder);
+        return send(writeData, RequestFuture.ofBinary(writeData, callback), timeoutMillis);
+    }
+
+    /**
+     * 发送对象请求，用registerCodec注册的请求编解码器直接写入包缓冲区
+     * 回包用注册的回包解码器解码后回调，RequestFuture.getValue获取结果
+     * @param request 请求完成前不能修改，会话恢复重发时再次编码
+     * @param callback 成功或者失败回调，可以为null
+     * @throws IllegalStateException 指令未注册请求编解码器
+     * @see #sendRequest(int, String, long, TCallback)
+     */
+    @SuppressWarnings("unchecked")
+    public <Req, Resp> RequestFuture sendObject(int cmd, Req request, long timeoutMillis, TCallback<Resp> callback) {
+        CommandCodec codecs = commandCodecs.get(cmd);
+        if (codecs == null || codecs.request == null) {
+            throw new IllegalStateException("未注册请求编解码器，cmd:" + cmd);
+        }
+        WriteData writeData = WriteData.ofObject(cmd, (Codec<Req>) codecs.request, request);
+        return send(writeData, RequestFuture.ofObject(writeData, callback), timeoutMillis);
+    }
+
+    private RequestFuture send(final WriteData writeData, final RequestFuture future, long timeoutMillis) {
+        int cmd = writeData.getCommand();
+        LogUtils.e("send " + "to server with cmd " + cmd);
+        writeData.setPriority(commandPriorities.get(cmd));
+        // 优先使用预置字典，版本未注册或压缩后不更小时按gzip阈值压缩
+        int version = dictionaryVersion;
+        if (version >= 0) {
+            writeData.compressWithDictionary(version, dictionaryMinBytes);
+        }
+        int threshold = compressionThreshold;
+        if (threshold > 0) {
+            writeData.compress(threshold);
+        }
+        writeData.setFuture(future);
+        Outbox box = outbox;
+        if (box != null && Arrays.binarySearch(outboxCommands, cmd) >= 0) {
+            writeData.setPersisted(box.append(writeData.getRequestId(), writeData.getFrame()));
+        }
+        Transport t = selectTransport(cmd);
+        if (socket_state == SocketState.STATE_CONNECTION && t != null) {
+            final long requestId = writeData.getRequestId();
+            try {
+                registerRequest(writeData, t);
+                scheduleTimeout(writeData, timeoutMillis);
+                if (!t.write(writeData)) {
+                    throw new IllegalStateException("写队列已满");
+                }
+            } catch (Exception e) {
+                if (requestInfoMap.remove(requestId, writeData)) {
+                    onRequestRemoved(writeData);
+                }
+                writeData.releaseFrame();
+                LogUtils.e("方法:sendJsonToServer,异常:" + e.getMessage());
+                // 放队列出现异常，直接进行返回处理。已保存到发件箱的消息重连后重发
+                if (sendErrorReceiver != null && !writeData.isPersisted()) {
+                    sendErrorReceiver.onSendError(cmd, writeData);
+                }
+                IMReport.getInstance().report("方法:sendJsonToServer,异常:" + e.getMessage());
+                future.fail("发送失败:" + e.getMessage());
+            }
+        } else {
+            writeData.releaseFrame();
+            // 发送消息时，长连接非连接状态，直接进行返回处理。已保存到发件箱的消息重连后重发
+            if (sendErrorReceiver != null && !writeData.isPersisted()) {
+                sendErrorReceiver.onSendError(cmd, writeData);
+            }
+            future.fail("长连接未连接");
+        }
+        return future;
+    }
+
+    /**
+     * 超时未收到回包时移除请求记录
+     */
+    private void scheduleTimeout(final WriteData writeData, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return;
+        }
+        final long requestId = writeData.getRequestId();
+        final RequestFuture future = writeData.getFuture();
+        future.setTimeout(requestTimer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                if (requestInfoMap.remove(requestId, writeData)) {
+                    onRequestRemoved(writeData);
+                    future.fail("请求超时");
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * 连接建立后按保存顺序重发发件箱中未确认的消息
+     * 使用原来的requestID，回包通过CmdRespReceiver回调；写队列拒绝时停止，剩余的下次重连再发
+     * @param replay 会话恢复时服务端未处理的请求ID，null表示全部重发
+     */
+    private void replayOutbox(List<ByteBuffer> frames, Set<Long> replay) {
+        int replayed = 0;
+        for (ByteBuffer frame : frames) {
+            WriteData writeData = new WriteData(frame);
+            // 等待回包中或服务端已处理的不重发
+            if (requestInfoMap.get(writeData.getRequestId()) != null
+                    || (replay != null && !replay.contains(writeData.getRequestId()))) {
+                writeData.releaseFrame();
+                continue;
+            }
+            writeData.setPriority(commandPriorities.get(writeData.getCommand()));
+            writeData.setFuture(new RequestFuture(writeData, null));
+            Transport t = selectTransport(writeData.getCommand());
+            if (socket_state != SocketState.STATE_CONNECTION || t == null) {
+                writeData.releaseFrame();
+                break;
+            }
+            registerRequest(writeData, t);
+            scheduleTimeout(writeData, requestTimeoutMillis);
+            if (!t.write(writeData)) {
+                removeRequest(writeData);
+                writeData.releaseFrame();
+                writeData.getFuture().fail("写队列已满");
+                break;
+            }
+            replayed++;
+        }
+        LogUtils.e("发件箱重发消息:" + replayed + "/" + frames.size());
+    }
+
+    /**
+     * 请求取消时移除请求记录
+     */
+    void removeRequest(WriteData writeData) {
+        if (requestInfoMap.remove(writeData.getRequestId(), writeData)) {
+            onRequestRemoved(writeData);
+        }
+    }
+
+    /**
+     * 连接断开，保留等待回包的请求，超时仍然生效
+     */
+    private void suspendRequests() {
+        suspendedRequests.clear();
+        requestInfoMap.valuesTo(suspendedRequests);
+        Collections.sort(suspendedRequests, new Comparator<WriteData>() {
+            @Override
+            public int compare(WriteData a, WriteData b) {
+                // requestID递增，差值比较兼容溢出
+                long d = a.getRequestId() - b.getRequestId();
+                return d < 0 ? -1 : (d > 0 ? 1 : 0);
+            }
+        });
+    }
+
+    /**
+     * 不能恢复会话，保留的请求全部失败
+     */
+    private synchronized void failSuspendedRequests(String msg) {
+        for (WriteData writeData : suspendedRequests) {
+            if (requestInfoMap.remove(writeData.getRequestId(), writeData)) {
+                onRequestRemoved(writeData);
+                if (writeData.getFuture() != null) {
+                    writeData.getFuture().fail(msg);
+                }
+            }
+        }
+        suspendedRequests.clear();
+    }
+
+    /**
+     * 连接建立后在控制线程中调用SessionResumer握手，超时未完成按恢复失败处理
+     * @param frames 发件箱中未确认的包
+     */
+    private void startResume(final int generation, final List<ByteBuffer> frames) {
+        List<Long> ids = new ArrayList<>();
+        synchronized (this) {
+            for (WriteData writeData : suspendedRequests) {
+                if (requestInfoMap.get(writeData.getRequestId()) == writeData) {
+                    ids.add(writeData.getRequestId());
+                }
+            }
+        }
+        if (frames != null) {
+            for (ByteBuffer frame : frames) {
+                long requestId = frame.getLong(frame.position() + 4);
+                if (requestInfoMap.get(requestId) == null) {
+                    ids.add(requestId);
+                }
+            }
+        }
+        long[] unacked = new long[ids.size()];
+        for (int i = 0; i < unacked.length; i++) {
+            unacked[i] = ids.get(i);
+        }
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final ResumeCallback callback = new ResumeCallback() {
+            @Override
+            public void onResumed(final String token, final long[] replay) {
+                if (done.compareAndSet(false, true)) {
+                    controlExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            finishResume(generation, token, replay, frames);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onRejected() {
+                if (done.compareAndSet(false, true)) {
+                    controlExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            rejectResume(generation, frames);
+                        }
+                    });
+                }
+            }
+        };
+        long timeout = requestTimeoutMillis > 0 ? requestTimeoutMillis : DEFAULT_REQUEST_TIMEOUT;
+        controlExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                callback.onRejected();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        try {
+            sessionResumer.resume(resumeToken, unacked, callback);
+        } catch (Exception e) {
+            LogUtils.e("方法:startResume,异常:" + e.getMessage());
+            IMReport.getInstance().report("方法:startResume,异常:" + e.getMessage());
+            callback.onRejected();
+        }
+    }
+
+    /**
+     * 会话恢复成功，重发服务端未处理的请求，其余请求等待服务端重发回包
+     */
+    private void finishResume(int generation, String token, long[] replay, List<ByteBuffer> frames) {
+        List<WriteData> suspended;
+        synchronized (this) {
+            if (generation != connectGeneration || socket_state != SocketState.STATE_CONNECTION) {
+                return;
+            }
+            if (token != null) {
+                resumeToken = token;
+            }
+            // 意外断开时登录状态被重置，还原为断开前的状态
+            if (loginState == LOGIN_DEFAULT) {
+                setLoginState(resumeLoginState);
+            }
+            suspended = new ArrayList<>(suspendedRequests);
+            suspendedRequests.clear();
+        }
+        Set<Long> replaySet = new HashSet<>();
+        if (replay != null) {
+            for (long requestId : replay) {
+                replaySet.add(requestId);
+            }
+        }
+        int replayed = 0;
+        for (WriteData writeData : suspended) {
+            long requestId = writeData.getRequestId();
+            if (requestInfoMap.get(requestId) != writeData) {
+                continue;
+            }
+            Transport t = selectTransport(writeData.getCommand());
+            if (t == null) {
+                break;
+            }
+            registerRequest(writeData, t);
+            if (!replaySet.contains(requestId)) {
+                continue;
+            }
+            try {
+                writeData.resetFrame();
+            } catch (RuntimeException e) {
+                // 编码器再次编码失败
+                LogUtils.e("方法:finishResume,异常:" + e.getMessage());
+                removeRequest(writeData);
+                writeData.getFuture().fail("重新编码失败:" + e.getMessage());
+                continue;
+            }
+            if (!t.write(writeData)) {
+                removeRequest(writeData);
+                writeData.releaseFrame();
+                writeData.getFuture().fail("写队列已满");
+                continue;
+            }
+            replayed++;
+        }
+        LogUtils.e("会话恢复成功，重发请求:" + replayed + "/" + suspended.size());
+        if (frames != null) {
+            replayOutbox(frames, replaySet);
+        }
+    }
+
+    /**
+     * 服务端不能恢复会话，按新连接处理
+     */
+    private void rejectResume(int generation, List<ByteBuffer> frames) {
+        synchronized (this) {
+            if (generation != connectGeneration || socket_state != SocketState.STATE_CONNECTION) {
+                return;
+            }
+            resumeToken = null;
+            failSuspendedRequests("会话恢复失败");
+        }
+        LogUtils.e("会话恢复失败");
+        notifyConnect();
+        if (frames != null) {
+            replayOutbox(frames, null);
+        }
+    }
+
+    /**
+     * 连接断开，等待回包的请求全部失败
+     */
+    private void failInflightRequests(String msg) {
+        List<WriteData> inflight = new ArrayList<>();
+        requestInfoMap.drainTo(inflight);
+        for (WriteData writeData : inflight) {
+            if (writeData.getFuture() != null) {
+                writeData.getFuture().fail(msg);
+            }
+        }
+    }
+
+    /**
+     * 登录中
+     */
+    public boolean inLogin() {
+        LogUtils.e("inLogin: +" + socket_state);
+        return loginState == LOGIN_SUCCESS;
+    }
+
+    /**
+     * 重连
      */
-    private ChatManager() {
-        socket_state = SocketState.STATE_DEFAULT;
-        writeQueue = new LinkedBlockingQueue<>();
-        reconnectQueue = new LinkedBlockingQueue<>(1);
-        requestInfoMap = new ConcurrentHashMap<>();
-        sHandler = new SocketHandler();
+    public void reConnect() {
+        scheduleReconnect(0);
     }
 
     /**
-     * 开启线程，无线循环检测长连接的状态，如果非正常连接状态，则建立连接
-     * 重连之前需要检测读/写线程是否都关闭掉了，socket是否close掉了。
+     * 多次重连
+     * 清除重连次数，取消等待中的延迟重连，立即重新进行多次重连
      */
-    private void initSocket() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                final boolean[] isFail = {false};
-                try {
-                    // 检测长连接状态
-                    if (socket_state != SocketState.STATE_CONNECTION) {
-                        ipAddressProvider.getAddress(re_connect_time, new TCallback<IpAddress>() {
-                            @Override
-                            public void onSuccess(IpAddress s) {
-                                connect(s);
-                            }
+    public synchronized void forceReconnect(){
+        if (pendingReconnect != null && pendingReconnect.cancel(false)) {
+            pendingReconnect = null;
+            reconnectQueue.poll();
+        }
+        if (reconnectQueue.offer(true)) {
+            re_connect_time = 0;
+            reconnectBackoff.reset();
+            pendingReconnect = controlExecutor.schedule(connectTask, 0, TimeUnit.MILLISECONDS);
+        }
+    }
 
-                            @Override
-                            public void onFailure(String msg) {
-                                isFail[0] = true;
-                            }
-                        });
-                    }
-                } catch (Exception e) {
-                    isFail[0] = true;
-                    LogUtils.e("方法:initSocket,run exception:" + e.getMessage());
-                    IMReport.getInstance().report("方法:initSocket,run exception:" + e.getMessage());
-                } finally {
-                    reconnectQueue.poll();
-                    if (isFail[0]) {
-                        LogUtils.e("获取长连接出现异常，进行重连");
-                        IMReport.getInstance().report("获取长连接出现异常，进行重连");
-                        endSocketReConnect();
-                    }
-                }
-            }
-        }).start();
+    // 连接成功
+    private void notifyConnect() {
+        if (statusReceiver != null) {
+            statusReceiver.onConnect();
+        }
     }
 
     /**
-     * 结束长连接
+     * 设置传输方式，下次建立连接时生效
+     * @param mode TRANSPORT_BIO 或 TRANSPORT_NIO
      */
-    public synchronized void endSocket() {
-        socket_state = SocketState.STATE_DISCONNECT;
-        // 检查读线程是否关闭，若存活，则终止掉
-        if (readThread != null) {
-            if (readThread.isAlive()) {
-                readThread.interrupt();
-            }
-            readThread = null;
-        }
-        // 检查写线程是否关闭，若存活，则终止掉
-        if (writeThread != null) {
-            stopWrite.compareAndSet(false, true);
-            if (writeThread.isAlive()) {
-                writeThread.interrupt();
-            }
-            writeThread = null;
+    public void setTransportMode(int mode) {
+        if (mode == TRANSPORT_BIO || mode == TRANSPORT_NIO) {
+            this.transportMode = mode;
         }
-        // 检查socket是否存在，以及是否close
-        if (mSocket != null) {
-            if (!mSocket.isClosed()) {
-                try {
-                    mSocket.close();
-                } catch (IOException e) {
-                    //
-                }
-            }
-            mSocket = null;
+    }
+
+    /**
+     * 设置合并写参数，下次建立连接时生效
+     * 写线程每次唤醒时把队列中的消息合并后一次写入，每条消息仍单独回调结果
+     * @param maxBytes 一次写入的最大字节数，单条消息超过时单独写入
+     * @param maxCount 一次写入的最大消息数
+     * @param lingerMicros 队列为空后等待更多消息的时间(微秒)，0表示不等待；NIO方式下精度为毫秒
+     */
+    public void setWriteCoalescing(int maxBytes, int maxCount, int lingerMicros) {
+        if (maxBytes > 0 && maxCount > 0 && lingerMicros >= 0) {
+            this.maxWriteBytes = maxBytes;
+            this.maxWriteCount = maxCount;
+            this.lingerMicros = lingerMicros;
         }
-        // 处理写队列中的内容
-        if (writeQueue != null && writeQueue.size() > 0) {
-            WriteData[] dataList = writeQueue.toArray(new WriteData[0]);
-            for (WriteData data : dataList) {
-                if (sendErrorReceiver != null) {
-                    sendErrorReceiver.onSendError(data.getCommand(), data);
-                }
+    }
+
+    /**
+     * 开启发件箱，指定指令的请求先保存到文件再发送，收到回包后删除
+     * 未连接、写队列拒绝或连接断开时不回调SendErrorReceiver，下次连接成功后按保存顺序重发，进程重启后同样重发
+     * 请求的callback只对应本次发送，重发的回包通过CmdRespReceiver回调
+     * @param dir 保存目录，如context.getFilesDir()
+     * @param commands 需要保存的指令
+     * @return 文件无法打开时返回false
+     */
+    public synchronized boolean enableOutbox(File dir, int... commands) {
+        try {
+            if (outbox == null) {
+                outbox = new Outbox(dir, Outbox.DEFAULT_SEGMENT_SIZE);
             }
+        } catch (IOException e) {
+            LogUtils.e("方法:enableOutbox,异常:" + e.getMessage());
+            IMReport.getInstance().report("方法:enableOutbox,异常:" + e.getMessage());
+            return false;
         }
+        int[] sorted = commands.clone();
+        Arrays.sort(sorted);
+        outboxCommands = sorted;
+        return true;
     }
 
-    // 结束长连接，尝试重连
-    private synchronized void endSocketReConnect() {
-        endSocket();
-        notifyDisconnect();
+    /**
+     * 设置发送时的gzip压缩，包体达到threshold字节时压缩，压缩后不更小时发送原包体
+     * 压缩的包设置FLAG_GZIP标志位，与服务端压缩回包使用同一标志位
+     * @param threshold 字节数，小于等于0表示不压缩(默认)
+     */
+    public void setCompressionThreshold(int threshold) {
+        this.compressionThreshold = threshold;
     }
 
     /**
-     * 建立长连接，开启读/写线程
+     * 注册预置字典，收到使用该版本压缩的回包时解压
+     * 字典由抓取的流量训练生成，内容发布后不能修改，修改时使用新版本
+     * @param version 0~65535
+     * @param dictionary 字典内容，常用的字符串放在末尾
      */
-    private void connect(IpAddress ipAddress) {
-        try {
-            // 建立长连接，设置输入输出流
-            mSocket = new Socket(ipAddress.getIp(), ipAddress.getPort());
-            LogUtils.eDebug("Successful connection to the server(" + ipAddress.getIp() + ":" + ipAddress.getPort() + ")");
-            LogUtils.e("Successful connection to the server");
-            mInputStream = mSocket.getInputStream();
-            mDataOutputStream = new DataOutputStream(mSocket.getOutputStream());
-            socket_state = SocketState.STATE_CONNECTION;
-            // 开启读线程
-            read();
-            // 开启写线程之前需要把writeQueue清空
-            if (writeQueue != null && writeQueue.size() > 0) {
-                writeQueue.clear();
-            }
-            // 开启写线程
-            stopWrite = new AtomicBoolean(false);
-            writeData();
-            notifyConnect();
-        } catch (Exception e) {
-            LogUtils.e("方法:connect, 异常:" + e.getMessage());
-            IMReport.getInstance().report("方法:connect, 异常:" + e.getMessage());
+    public void registerCompressionDictionary(int version, byte[] dictionary) {
+        if (version >= 0 && version <= PresetDictionary.MAX_VERSION && dictionary != null) {
+            PresetDictionary.register(version, dictionary.clone());
         }
     }
 
     /**
-     * 读取数据
+     * 已注册的预置字典版本，可以在登录时告诉服务端，服务端只使用这些版本压缩回包
      */
-    private void read() {
-        readThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (true) {
-                    // 每次循环线判断一下外部是否有中断线程
-                    boolean isInterrupted = Thread.currentThread().isInterrupted();
-                    if (isInterrupted) {
-                        LogUtils.e("方法:read,读线程:" + Thread.currentThread().getName() + "终止");
-                        IMReport.getInstance().report("方法:read,读线程:" + Thread.currentThread().getName() + "终止");
-                        break;
-                    }
-                    try {
-                        // 读取长连接信息
-                        byte[] lenB = readByLen(16);
-                        // lenB为Null，说明读到-1或者读异常
-                        // 需要切换长连接状态，重置连接
-                        if (lenB == null) {
-                            LogUtils.e("方法:read,读到-1或者读异常(16)");
-                            sHandler.sendEmptyMessage(0);
-                            IMReport.getInstance().report("方法:read,读到-1或者读异常(16)");
-                            break;
-                        }
-                        int len = getLenByData(lenB);
-                        long memory = Runtime.getRuntime().maxMemory() - (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
-                        // 包长度大于闲置空间时，需要重置连接
-                        if (len - 12 > memory) {
-                            System.gc();
-                            long newMemory = Runtime.getRuntime().maxMemory() - (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
-                            if (len - 12 > newMemory) {
-                                LogUtils.e("方法:read,包长度大于闲置空间");
-                                sHandler.sendEmptyMessage(0);
-                                IMReport.getInstance().report("方法:read,包长度大于闲置空间");
-                                break;
-                            }
-                        }
-                        long requestId = getRequestIDByData(lenB);
-                        int command = getCommandByData(lenB);
-                        String json = "";
-                        if (len - 12 > 0) {
-                            byte[] lenJ = readByLen(len - 12);
-                            if (lenJ == null) {
-                                LogUtils.e("方法:read,读到-1或者读异常(" + (len - 12) + ")");
-                                sHandler.sendEmptyMessage(0);
-                                IMReport.getInstance().report("方法:read,读到-1或者读异常(" + (len - 12) + ")");
-                                break;
-                            }
-                            boolean isGZip = getGZip(lenB);
-                            if (isGZip){
-                                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                                ByteArrayInputStream in = new ByteArrayInputStream(lenJ);
-                                try {
-                                    GZIPInputStream ungzip = new GZIPInputStream(in);
-                                    byte[] buffer = new byte[256];
-                                    int n;
-                                    while ((n = ungzip.read(buffer)) >= 0) {
-                                        out.write(buffer, 0, n);
-                                    }
-                                    ungzip.close();
-                                    in.close();
-                                    out.flush();
-                                    out.close();
-                                } catch (IOException e) {
-                                    LogUtils.e("gzip uncompress error."+e);
-                                }
-                                json = out.toString();
-                            }else{
-                                json = new String(lenJ);
-                            }
-
-                            LogUtils.eLongDebug("readData json:" + json);
-                        }
-                        // 匹配发送时的信息
-                        WriteData writeData = requestInfoMap.get(requestId);
-                        requestInfoMap.remove(requestId);
-                        if (cmdRespReceiver != null) {
-                            cmdRespReceiver.onResponse(command, writeData, json);
-                        }
-                        re_connect_time = 0;
-                    } catch (Exception e) {
-                        if (! (e instanceof InterruptedException)) {
-                            sHandler.sendEmptyMessage(0);
-                        }
-                        LogUtils.e("方法:read,读线程异常:" + e.getMessage());
-                        IMReport.getInstance().report("方法:read,读线程异常:" + e.getMessage());
-                    }
-                }
-            }
-        });
-        readThread.start();
+    public int[] getCompressionDictionaryVersions() {
+        return PresetDictionary.versions();
     }
 
     /**
-     * 写数据
+     * 设置发送时的预置字典压缩，包体达到minBytes字节时压缩，设置FLAG_DICTIONARY标志位
+     * 版本未注册或压缩后不更小时按setCompressionThreshold使用gzip压缩或发送原包体
+     * @param version 服务端支持的字典版本，小于0表示不使用(默认)
+     * @param minBytes 字节数
      */
-    private void writeData() {
-        writeThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    while (!stopWrite.get()) {
-                        boolean isInterrupted = Thread.currentThread().isInterrupted();
-                        if (isInterrupted) {
-                            LogUtils.e("方法:writeData,写线程:" + Thread.currentThread().getName() + "终止");
-                            IMReport.getInstance().report("方法:writeData,写线程:" + Thread.currentThread().getName() + "终止");
-                            break;
-                        }
-                        WriteData writeData = writeQueue.take();
-                        if (isConnecting()) {
-                            try {
-                                mDataOutputStream.write(writeData.getData());
-                                writeData.getResultQueue().put(true);
-                                re_connect_time = 0;
-                                LogUtils.e("write success");
-                            } catch (Exception e) {
-                                writeData.getResultQueue().put(false);
-                                if (! (e instanceof InterruptedException)) {
-                                    sHandler.sendEmptyMessage(0);
-                                }
-                                LogUtils.e("方法:writeData,写异常:" + e.getMessage());
-                                IMReport.getInstance().report("方法:writeData,写异常:" + e.getMessage());
-                            }
-                        } else {
-                            writeData.getResultQueue().put(false);
-                            LogUtils.e("方法:writeData,写之前检测到长连接已断开");
-                            sHandler.sendEmptyMessage(0);
-                            IMReport.getInstance().report("方法:writeData,写之前检测到长连接已断开");
-                        }
-                    }
-                } catch (Exception e) {
-                    if (! (e instanceof InterruptedException)) {
-                        sHandler.sendEmptyMessage(0);
-                    }
-                    LogUtils.e("方法:writeData,写异常:" + e.getMessage());
-                    IMReport.getInstance().report("方法:writeData,写异常:" + e.getMessage());
-                }
-            }
-        });
-        writeThread.start();
+    public void setDictionaryCompression(int version, int minBytes) {
+        this.dictionaryMinBytes = Math.max(0, minBytes);
+        this.dictionaryVersion = version;
     }
 
     /**
-     * 是否连接中
+     * 设置写队列的字节数容量和高低水位，下次建立连接时生效
+     * 队列字节数超过高水位时回调WritabilityListener.onWritabilityChanged(false)，降到低水位以下时回调true
+     * @param lowWaterMark 低水位(字节)
+     * @param highWaterMark 高水位(字节)，不小于低水位
+     * @param capacity 容量(字节)，不小于高水位，超过时按setOverflowPolicy处理
      */
-    private boolean isConnecting() {
-        return mSocket != null && mSocket.isConnected() && !mSocket.isClosed() && !mSocket.isInputShutdown();
+    public void setWriteBufferLimits(int lowWaterMark, int highWaterMark, int capacity) {
+        if (lowWaterMark >= 0 && highWaterMark >= lowWaterMark && capacity >= highWaterMark) {
+            this.lowWaterMark = lowWaterMark;
+            this.highWaterMark = highWaterMark;
+            this.writeBufferCapacity = capacity;
+        }
     }
 
-    public void sendJsonToServer(int cmd, String json) {
-        sendJsonToServer(cmd, json, null);
+    /**
+     * 设置写队列超过容量时的处理方式，下次建立连接时生效，默认OVERFLOW_FAIL_FAST
+     * OVERFLOW_BLOCK会让发送线程等待，不要在主线程发送
+     * @param policy OVERFLOW_BLOCK、OVERFLOW_FAIL_FAST 或 OVERFLOW_DROP_OLDEST
+     * @param blockTimeoutMillis OVERFLOW_BLOCK时发送线程的最长等待时间(毫秒)
+     */
+    public void setOverflowPolicy(int policy, long blockTimeoutMillis) {
+        if (policy >= OVERFLOW_BLOCK && policy <= OVERFLOW_DROP_OLDEST && blockTimeoutMillis >= 0) {
+            this.overflowPolicy = policy;
+            this.blockTimeoutMillis = blockTimeoutMillis;
+        }
     }
 
     /**
-     * 发送数据
-     * @param cmd 指令码
-     * @param json json格式数据
-     * @param callback 成功或者失败回调
+     * 当前连接的写队列是否低于高水位，多连接时需要全部连接都低于高水位，未连接时返回false
      */
-    public void sendJsonToServer(int cmd, String json, TCallback callback) {
-        LogUtils.eDebug("send " + json + " to server with cmd " + cmd);
-        LogUtils.e("send " + "to server with cmd " + cmd);
-        WriteData writeData = new WriteData(cmd, json, callback);
-        if (socket_state == SocketState.STATE_CONNECTION) {
-            try {
-                requestInfoMap.put(CommonUtils.longFrom8Bytes(writeData.getRequestsID(), 0, false), writeData);
-                writeQueue.put(writeData);
-            } catch (Exception e) {
-                LogUtils.e("方法:sendJsonToServer,异常:" + e.getMessage());
-                // 放队列出现异常，直接进行返回处理。
-                if (sendErrorReceiver != null) {
-                    sendErrorReceiver.onSendError(cmd, writeData);
-                }
-                IMReport.getInstance().report("方法:sendJsonToServer,异常:" + e.getMessage());
-            }
-        } else {
-            // 发送消息时，长连接非连接状态，直接进行返回处理。
-            if (sendErrorReceiver != null) {
-                sendErrorReceiver.onSendError(cmd, writeData);
+    public boolean isWritable() {
+        Transport[] current = stripes;
+        if (current.length == 0) {
+            return false;
+        }
+        for (Transport t : current) {
+            if (!t.isWritable()) {
+                return false;
             }
         }
+        return true;
     }
 
     /**
-     * 获取服务端回包的信息
-     * 4字节剩余包长
+     * 设置同一地址的连接数，下次建立连接时生效
+     * 多个连接共用请求记录，回包从任一连接返回都可以匹配；任一连接异常时全部连接断开重连，多连接时不迁移地址
+     * @param connections 连接数，默认1
+     * @param policy STRIPE_BY_COMMAND 或 STRIPE_LEAST_OUTSTANDING
      */
-    private int getLenByData(byte[] data) {
-        byte[] bytes = new byte[4];
-        System.arraycopy(data, 0, bytes, 0, 4);
-        return CommonUtils.big_bytesToInt(bytes);
+    public void setStriping(int connections, int policy) {
+        if (connections > 0 && (policy == STRIPE_BY_COMMAND || policy == STRIPE_LEAST_OUTSTANDING)) {
+            this.stripeCount = connections;
+            this.stripePolicy = policy;
+        }
     }
 
     /**
-     * 获取服务端回包的信息
-     * 8字节requestID
+     * 设置写队列可写状态变化回调
+     * @param listener
      */
-    private long getRequestIDByData(byte[] data) {
-        byte[] bytes = new byte[8];
-        System.arraycopy(data, 4, bytes, 0, 8);
-        return CommonUtils.longFrom8Bytes(bytes, 0, false);
+    public void setWritabilityListener(WritabilityListener listener) {
+        this.writabilityListener = listener;
+    }
+
+    public interface WritabilityListener {
+        /**
+         * 写队列超过高水位或降到低水位以下时调用，在发送线程或写线程中执行
+         * @param writable false时发送方应暂停或减缓发送
+         */
+        void onWritabilityChanged(boolean writable);
     }
 
     /**
-     * 获取服务端回包的信息
-     * 3字节命令的值
-     * 第一位已被服务端用于其他用途，默认补充为0，为了凑齐4字节进行计算
+     * 设置指令的发送优先级，立即生效
+     * @param cmd 指令码
+     * @param priority PRIORITY_CONTROL、PRIORITY_INTERACTIVE 或 PRIORITY_BULK
      */
-    private int getCommandByData(byte[] data) {
-        byte[] bytes = new byte[4];
-        bytes[0] = 0;
-        System.arraycopy(data, 13, bytes, 1, 3);
-        return CommonUtils.big_bytesToInt(bytes);
+    public void setCommandPriority(int cmd, int priority) {
+        if (priority >= PRIORITY_CONTROL && priority <= PRIORITY_BULK) {
+            commandPriorities.put(cmd, priority);
+        }
     }
 
-    private boolean getGZip(byte[] data){
-        byte b = data[12];
-        return ((b >> 5) & 0x1)==1;
+    /**
+     * 设置优先级调度方式，下次建立连接时生效
+     * @param mode SCHEDULE_WEIGHTED 或 SCHEDULE_STRICT
+     * @param controlWeight SCHEDULE_WEIGHTED时每轮取PRIORITY_CONTROL消息的条数，以下同
+     * @param interactiveWeight
+     * @param bulkWeight
+     */
+    public void setPriorityScheduling(int mode, int controlWeight, int interactiveWeight, int bulkWeight) {
+        if ((mode == SCHEDULE_WEIGHTED || mode == SCHEDULE_STRICT)
+                && controlWeight > 0 && interactiveWeight > 0 && bulkWeight > 0) {
+            this.scheduling = mode;
+            this.laneWeights = new int[]{controlWeight, interactiveWeight, bulkWeight};
+        }
     }
 
     /**
-     * 读取长度为len的字符数组
-     *
-     * @param len：长度
-     * @return 字符数组
+     * 设置建立连接的超时时间
+     * IpAddressProvider返回多个地址时，每隔staggerMillis依次发起连接，前一个失败时立即发起下一个，使用最先成功的连接
+     * @param timeoutMillis 每个地址的连接超时时间(毫秒)
+     * @param staggerMillis 依次发起连接的间隔(毫秒)
      */
-    private byte[] readByLen(int len) {
-        byte[] result = new byte[len];
-        int readLen = 0;
-        try {
-            while (true) {
-                int curReadLen;
-                if (result.length - readLen < 1024) {
-                    curReadLen = mInputStream.read(result, readLen, result.length - readLen);
-                } else {
-                    curReadLen = mInputStream.read(result, readLen, 1024);
-                }
-                readLen += curReadLen;
-                if (readLen == len) break;
-                if (curReadLen == -1) {
-                    result = null;
-                    break;
-                }
-            }
-            return result;
-        } catch (Exception e) {
-            return null;
+    public void setConnectTimeout(long timeoutMillis, long staggerMillis) {
+        if (timeoutMillis > 0 && staggerMillis >= 0) {
+            endpointConnector = new EndpointConnector(TimeUnit.MILLISECONDS.toNanos(timeoutMillis),
+                    TimeUnit.MILLISECONDS.toNanos(staggerMillis));
         }
     }
 
-    class SocketHandler extends Handler {
-        @Override
-        public void handleMessage(Message msg) {
-            super.handleMessage(msg);
-            switch (msg.what) {
-                case 0:
-                    setLoginState(LOGIN_DEFAULT);
-                    endSocketReConnect();
-                    break;
-                default:
-                    break;
-            }
-        }
+    /**
+     * 地址的平均请求往返时间，IpAddressProvider可以据此选择地址
+     * @return 毫秒，没有连接过或没有收到过回包时返回-1
+     */
+    public long getEndpointRtt(IpAddress address) {
+        long rtt = endpointStats.getRttNanos(address);
+        return rtt >= 0 ? TimeUnit.NANOSECONDS.toMillis(rtt) : -1;
     }
 
     /**
-     * 登录中
+     * 按平均请求往返时间从小到大排序，没有往返时间的地址保持原顺序排在后面
+     * MultiIpAddressProvider可以用来对返回的地址排序
      */
-    public boolean inLogin() {
-        LogUtils.e("inLogin: +" + socket_state);
-        return loginState == LOGIN_SUCCESS;
+    public List<IpAddress> rankEndpoints(List<IpAddress> addresses) {
+        return endpointStats.rank(addresses);
     }
 
     /**
-     * 重连
+     * 设置是否迁移到更快的地址，默认不迁移
+     * 当前地址的平均往返时间超过另一个连接过的地址的ratio倍且至少慢minGapMillis时，连接该地址，
+     * 新请求走新连接，旧连接等待已发送的请求回包后关闭；迁移后回调StatusReceiver.onConnect，需要重新登录时在其中处理
+     * @param enabled 是否迁移
+     * @param ratio 需要大于1
+     * @param minGapMillis 毫秒
      */
-    public void reConnect() {
-        if (reconnectQueue.offer(true)) {
-            initSocket();
+    public void setEndpointMigration(boolean enabled, double ratio, long minGapMillis) {
+        if (ratio > 1 && minGapMillis >= 0) {
+            this.migrationRatio = ratio;
+            this.migrationMinGapNanos = TimeUnit.MILLISECONDS.toNanos(minGapMillis);
+            this.migrationEnabled = enabled;
         }
     }
 
     /**
-     * 多次重连
-     * 清除重连次数，重新进行多次重连
+     * 设置心跳，下次建立连接时生效
+     * 读或写空闲超过心跳间隔时发送心跳包，超过心跳间隔加超时时间仍未读到任何数据时断开并重连
+     * @param cmd 心跳指令码，服务端需要回包，小于等于0表示不发送心跳
+     * @param foregroundIntervalMillis 前台心跳间隔(毫秒)
+     * @param backgroundIntervalMillis 后台心跳间隔(毫秒)
+     * @param timeoutMillis 心跳超时时间(毫秒)
      */
-    public void forceReconnect(){
-        if (reconnectQueue.offer(true)) {
-            re_connect_time = 0;
-            initSocket();
+    public synchronized void setHeartbeat(int cmd, long foregroundIntervalMillis, long backgroundIntervalMillis, long timeoutMillis) {
+        if (foregroundIntervalMillis >= 0 && backgroundIntervalMillis >= 0 && timeoutMillis > 0) {
+            this.heartbeatCommand = cmd;
+            this.foregroundHeartbeatMillis = foregroundIntervalMillis;
+            this.backgroundHeartbeatMillis = backgroundIntervalMillis;
+            this.heartbeatTimeoutMillis = timeoutMillis;
         }
     }
 
-    // 连接成功
-    private void notifyConnect() {
-        if (statusReceiver != null) {
-            statusReceiver.onConnect();
+    /**
+     * 设置应用是否在前台，切换当前连接的心跳间隔
+     * @param foreground
+     */
+    public synchronized void setAppForeground(boolean foreground) {
+        if (appForeground == foreground) {
+            return;
+        }
+        appForeground = foreground;
+        long interval = foreground ? foregroundHeartbeatMillis : backgroundHeartbeatMillis;
+        if (!heartbeats.isEmpty() && interval > 0) {
+            for (Heartbeat heartbeat : heartbeats) {
+                heartbeat.setInterval(TimeUnit.MILLISECONDS.toNanos(interval));
+            }
+        } else if (socket_state == SocketState.STATE_CONNECTION) {
+            startHeartbeats();
+        }
+    }
+
+    /**
+     * 设置sendJsonToServer的请求超时时间
+     * 超时未收到回包的请求从记录中移除，并回调callback.onFailure
+     * @param millis 毫秒，小于等于0表示不超时
+     */
+    public void setRequestTimeout(long millis) {
+        this.requestTimeoutMillis = millis;
+    }
+
+    /**
+     * 设置重连退避时间
+     * 每次重连的延迟在[baseMillis, 上次延迟*3]之间随机，不超过maxMillis
+     * @param baseMillis 最小延迟(毫秒)，0表示不延迟，由IpAddressProvider自行控制
+     * @param maxMillis 最大延迟(毫秒)
+     */
+    public void setReconnectBackoff(long baseMillis, long maxMillis) {
+        if (baseMillis >= 0 && maxMillis >= baseMillis) {
+            reconnectBackoff.setRange(baseMillis, maxMillis);
         }
     }
 
@@ -518,16 +1623,202 @@ public class ChatManager {
     private synchronized void notifyDisconnect() {
         if (re_connect_time >= totalReconnectTime) {
             LogUtils.e("已重连次数：" + re_connect_time + "，不再重连，进入onDisConnect回调。");
+            failSuspendedRequests("长连接断开");
             if (statusReceiver != null) {
                 statusReceiver.onDisConnect();
             }
         }else{
-            LogUtils.e("已重连次数：" + re_connect_time + "，进行下次重连。");
-            re_connect_time++;
-            reConnect();
+            // 上次连接收发过数据，重新开始退避
+            if (re_connect_time == 0) {
+                reconnectBackoff.reset();
+            }
+            long delay = reconnectBackoff.next();
+            // 已有等待中的重连时不计入重连次数
+            if (scheduleReconnect(delay)) {
+                LogUtils.e("已重连次数：" + re_connect_time + "，" + delay + "ms后进行下次重连。");
+                re_connect_time++;
+            }
+        }
+    }
+
+    /**
+     * 注册指令的处理器，在读线程或setDispatchExecutor设置的线程池中回调
+     * 收到该指令的回包或推送时只回调handler，不再回调fallback处理器和CmdRespReceiver
+     * @param command 3字节指令
+     * @param handler 为null时取消注册
+     */
+    public void registerHandler(int command, CommandHandler handler) {
+        commandHandlers.put(command, handler);
+    }
+
+    /**
+     * 注册指令的编解码器，sendObject用请求编解码器编码，Response.getValue和sendObject的回包用回包编解码器解码
+     * 同一指令可以分别注册JSON和二进制格式的回包编解码器，按回包包头的FLAG_BINARY选择；请求编解码器为最后注册的
+     * @param requestCodec 为null时不改变
+     * @param responseCodec 按isBinary替换对应格式的回包编解码器，为null时不改变
+     */
+    public synchronized <Req, Resp> void registerCodec(int command, Codec<Req> requestCodec, Codec<Resp> responseCodec) {
+        CommandCodec old = commandCodecs.get(command);
+        Codec<?> request = old != null ? old.request : null;
+        Codec<?> jsonResponse = old != null ? old.jsonResponse : null;
+        Codec<?> binaryResponse = old != null ? old.binaryResponse : null;
+        if (requestCodec != null) {
+            request = requestCodec;
+        }
+        if (responseCodec != null) {
+            if (responseCodec.isBinary()) {
+                binaryResponse = responseCodec;
+            } else {
+                jsonResponse = responseCodec;
+            }
+        }
+        commandCodecs.put(command, new CommandCodec(request, jsonResponse, binaryResponse));
+    }
+
+    CommandCodec getCommandCodec(int command) {
+        return commandCodecs.get(command);
+    }
+
+    /**
+     * 设置未注册指令的处理器，设置后不再回调CmdRespReceiver
+     * @param handler 为null时未注册的指令交给CmdRespReceiver
+     */
+    public void setFallbackHandler(CommandHandler handler) {
+        this.fallbackHandler = handler;
+    }
+
+    /**
+     * 设置回包的处理线程池，请求的回调、CommandHandler、CmdRespReceiver都在线程池中执行
+     * 同一个key的回包按收到的顺序依次处理，不同key并行，默认key为指令
+     * @param executor 为null时在读线程中处理(默认)
+     * @param maxPending 等待处理的回包上限，达到时读线程等待，不再从socket读取；NIO方式下所有连接的收发都会暂停
+     */
+    public void setDispatchExecutor(Executor executor, int maxPending) {
+        this.responseDispatcher = executor != null ? new OrderedDispatcher(executor, Math.max(1, maxPending)) : null;
+    }
+
+    /**
+     * 设置回包的顺序key
+     * @param selector 为null时按指令保证顺序
+     */
+    public void setDispatchKeySelector(DispatchKeySelector selector) {
+        this.dispatchKeySelector = selector;
+    }
+
+    public interface DispatchKeySelector {
+        /**
+         * 在读线程中调用，返回相等的key的回包按顺序处理
+         * @return 为null时不保证顺序
+         */
+        Object keyOf(Response response);
+    }
+
+    /**
+     * 设置批量回调，没有注册CommandHandler的回包合并后回调，不再回调fallback处理器和CmdRespReceiver
+     * 在读线程、时间窗口的定时线程或setDispatchExecutor设置的线程池中回调，批次按顺序回调
+     * @param listener 为null时取消，已合并的回包立即回调
+     * @param windowMillis 0表示一次读取解析出的回包合并为一批；大于0时从一批的第一个回包开始，该时间内收到的合并为一批
+     */
+    public void setBatchListener(BatchListener listener, long windowMillis) {
+        ResponseBatcher old;
+        synchronized (this) {
+            old = responseBatcher;
+            if (listener != null) {
+                long windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+                if (windowNanos > 0 && batchTimer == null) {
+                    batchTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "qrpc-batch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+                batchListener = listener;
+                responseBatcher = new ResponseBatcher(batchSink, windowNanos, batchTimer);
+            } else {
+                responseBatcher = null;
+            }
+        }
+        // 在锁外回调已合并的回包
+        if (old != null) {
+            old.flush();
+        }
+        if (listener == null) {
+            synchronized (this) {
+                if (responseBatcher == null) {
+                    batchListener = null;
+                }
+            }
         }
     }
 
+    public interface BatchListener {
+        /**
+         * 收到一批回包，按收到的顺序排列，每批最多512个
+         * @param responses 包体只在本方法内有效
+         */
+        void onBatch(List<Response> responses);
+    }
+
+    public interface CommandHandler {
+        /**
+         * 收到回包或推送
+         * @param response 包体只在本方法内有效，调用getJson时才解码
+         */
+        void onResponse(Response response);
+    }
+
+    /**
+     * 设置会话恢复的握手，设置了恢复令牌时生效
+     * 连接意外断开时保留等待回包的请求(超时仍然生效)，重连后不回调StatusReceiver.onConnect，而是调用SessionResumer.resume，
+     * 恢复成功后还原登录状态，只重发服务端未处理的请求；恢复失败或超时时保留的请求失败，按新连接回调onConnect
+     * @param resumer 为null时不恢复会话
+     */
+    public void setSessionResumer(SessionResumer resumer) {
+        this.sessionResumer = resumer;
+    }
+
+    /**
+     * 设置恢复令牌，如登录回包中服务端下发的会话ID
+     * @param token 为null时下次断开不保留请求
+     */
+    public void setResumeToken(String token) {
+        this.resumeToken = token;
+    }
+
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * 会话恢复的握手，由应用按服务端协议实现
+     */
+    public interface SessionResumer {
+        /**
+         * 重连成功后在控制线程中调用，可以用sendRequest发送握手请求，建议设置为PRIORITY_CONTROL
+         * @param token 恢复令牌
+         * @param unacked 未收到回包的请求ID，包括发件箱中未确认的，按发送顺序排列
+         * @param callback 握手完成后调用一次，可以在任意线程
+         */
+        void resume(String token, long[] unacked, ResumeCallback callback);
+    }
+
+    public interface ResumeCallback {
+        /**
+         * 恢复成功
+         * @param token 新的恢复令牌，null表示不变
+         * @param replay 服务端未处理、需要重发的请求ID；其余请求继续等待服务端重发回包
+         */
+        void onResumed(String token, long[] replay);
+
+        /**
+         * 服务端不能恢复会话
+         */
+        void onRejected();
+    }
+
     /**
      * 设置长连接状态回调
      * @param receiver
@@ -613,9 +1904,22 @@ public class ChatManager {
     public interface IpAddressProvider {
         /**
          * 获取ip port组装成IpAddress，通过callback回调返回
-         * @param re_connect_time 重连次数，以此确定重连延迟时间
+         * @param re_connect_time 重连次数，重连延迟已由setReconnectBackoff控制
          * @param callback 成功和错误回调
          */
         void getAddress(int re_connect_time, TCallback<IpAddress> callback);
     }
+
+    /**
+     * 可以返回多个地址的ip port 提供者
+     * 设置后建立连接时调用getAddresses，不再调用getAddress
+     */
+    public interface MultiIpAddressProvider extends IpAddressProvider {
+        /**
+         * 获取按优先顺序排列的多个ip port，通过callback回调返回
+         * @param re_connect_time 重连次数
+         * @param callback 成功和错误回调
+         */
+        void getAddresses(int re_connect_time, TCallback<List<IpAddress>> callback);
+    }
 }
@@ -0,0 +1,27 @@
+package com.innotech.qrpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 指令的请求或回包的编解码器，通过ChatManager.registerCodec按指令注册
+ * 直接写入包缓冲区、从包体解码，不经过中间的String或JSONObject；JSON格式可以用JsonWriter、JsonReader按字段手写，不使用反射
+ * 同一实例会在多个线程中同时使用，不能保存解码状态
+ */
+public interface Codec<T> {
+    /**
+     * 二进制格式，发送时包头设置FLAG_BINARY；否则为UTF-8的JSON
+     */
+    boolean isBinary();
+
+    /**
+     * 写入包体，会话恢复重发时会再次调用
+     */
+    void encode(T value, BodyWriter out);
+
+    /**
+     * @param body 已解压的包体，position到limit为内容，大端
+     * @throws IOException 格式错误
+     */
+    T decode(ByteBuffer body) throws IOException;
+}
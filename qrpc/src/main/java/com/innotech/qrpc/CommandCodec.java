@@ -0,0 +1,24 @@
+package com.innotech.qrpc;
+
+/**
+ * 一个指令的编解码器，注册时整体替换
+ * 回包按包头的FLAG_BINARY选择JSON或二进制格式的解码器，服务端可以对不同版本的客户端返回不同格式
+ */
+final class CommandCodec {
+    final Codec<?> request;
+    final Codec<?> jsonResponse;
+    final Codec<?> binaryResponse;
+
+    CommandCodec(Codec<?> request, Codec<?> jsonResponse, Codec<?> binaryResponse) {
+        this.request = request;
+        this.jsonResponse = jsonResponse;
+        this.binaryResponse = binaryResponse;
+    }
+
+    /**
+     * @return 对应格式未注册时返回null
+     */
+    Codec<?> decoder(int flags) {
+        return (flags & FrameDecoder.FLAG_BINARY) != 0 ? binaryResponse : jsonResponse;
+    }
+}
@@ -0,0 +1,61 @@
+package com.innotech.qrpc;
+
+import java.util.Arrays;
+
+/**
+ * 指令到发送优先级的映射
+ * 注册很少、查询在每次发送时进行，注册时复制整张表，查询不加锁
+ */
+final class CommandPriorities {
+    private volatile Table table = new Table(new int[0], new int[0]);
+    private final int defaultPriority;
+
+    CommandPriorities(int defaultPriority) {
+        this.defaultPriority = defaultPriority;
+    }
+
+    /**
+     * 设置指令的优先级
+     */
+    synchronized void put(int command, int priority) {
+        Table old = table;
+        int index = Arrays.binarySearch(old.commands, command);
+        if (index >= 0) {
+            int[] priorities = old.priorities.clone();
+            priorities[index] = priority;
+            table = new Table(old.commands, priorities);
+            return;
+        }
+        int insert = -index - 1;
+        int n = old.commands.length;
+        int[] commands = new int[n + 1];
+        int[] priorities = new int[n + 1];
+        System.arraycopy(old.commands, 0, commands, 0, insert);
+        System.arraycopy(old.priorities, 0, priorities, 0, insert);
+        commands[insert] = command;
+        priorities[insert] = priority;
+        System.arraycopy(old.commands, insert, commands, insert + 1, n - insert);
+        System.arraycopy(old.priorities, insert, priorities, insert + 1, n - insert);
+        table = new Table(commands, priorities);
+    }
+
+    /**
+     * 未设置的指令返回默认优先级
+     */
+    int get(int command) {
+        Table t = table;
+        int index = Arrays.binarySearch(t.commands, command);
+        return index >= 0 ? t.priorities[index] : defaultPriority;
+    }
+
+    private static final class Table {
+        // 按指令升序排列
+        final int[] commands;
+        final int[] priorities;
+
+        Table(int[] commands, int[] priorities) {
+            this.commands = commands;
+            this.priorities = priorities;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.innotech.qrpc;
+
+/**
+ * 3字节指令到处理器、编解码器等的映射
+ * 按指令的高、中、低字节分三级256项的数组，只创建用到的页，查找固定三次数组访问
+ * 注册很少、查找在每次收包时进行，注册时复制经过的三页，查找不加锁
+ */
+final class CommandTable<V> {
+    private static final int PAGE_SIZE = 256;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private volatile Object[][][] root = new Object[PAGE_SIZE][][];
+
+    /**
+     * @param value 为null时移除
+     */
+    synchronized void put(int command, V value) {
+        int high = (command >>> 16) & PAGE_MASK;
+        int mid = (command >>> 8) & PAGE_MASK;
+        int low = command & PAGE_MASK;
+        Object[][][] newRoot = root.clone();
+        Object[][] midPage = newRoot[high];
+        midPage = midPage != null ? midPage.clone() : new Object[PAGE_SIZE][];
+        Object[] lowPage = midPage[mid];
+        lowPage = lowPage != null ? lowPage.clone() : new Object[PAGE_SIZE];
+        lowPage[low] = value;
+        midPage[mid] = lowPage;
+        newRoot[high] = midPage;
+        root = newRoot;
+    }
+
+    /**
+     * 未注册的指令返回null
+     */
+    @SuppressWarnings("unchecked")
+    V get(int command) {
+        Object[][] midPage = root[(command >>> 16) & PAGE_MASK];
+        if (midPage == null) {
+            return null;
+        }
+        Object[] lowPage = midPage[(command >>> 8) & PAGE_MASK];
+        if (lowPage == null) {
+            return null;
+        }
+        return (V) lowPage[command & PAGE_MASK];
+    }
+}
@@ -0,0 +1,190 @@
+package com.innotech.qrpc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多地址并行建立连接
+ * 按顺序间隔一段时间依次发起非阻塞连接，前一个失败时立即发起下一个，使用最先成功的连接并关闭其他连接
+ * 每个连接有单独的超时时间，一个不响应的地址不会拖住整个重连
+ */
+final class EndpointConnector {
+
+    /**
+     * 建立成功的连接
+     */
+    static final class Result {
+        final SocketChannel channel;
+        final IpAddress address;
+
+        Result(SocketChannel channel, IpAddress address) {
+            this.channel = channel;
+            this.address = address;
+        }
+    }
+
+    private static final class Attempt {
+        final SocketChannel channel;
+        final IpAddress address;
+        final long deadlineNanos;
+
+        Attempt(SocketChannel channel, IpAddress address, long deadlineNanos) {
+            this.channel = channel;
+            this.address = address;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private final long attemptTimeoutNanos;
+    private final long staggerNanos;
+
+    /**
+     * @param attemptTimeoutNanos 每个地址的连接超时时间
+     * @param staggerNanos 依次发起连接的间隔
+     */
+    EndpointConnector(long attemptTimeoutNanos, long staggerNanos) {
+        this.attemptTimeoutNanos = attemptTimeoutNanos;
+        this.staggerNanos = staggerNanos;
+    }
+
+    /**
+     * 阻塞直到一个地址连接成功，返回的channel为非阻塞模式且未注册到任何Selector
+     * @param addresses 按优先顺序排列的地址
+     * @throws IOException 全部地址连接失败或超时
+     */
+    Result connect(List<IpAddress> addresses) throws IOException {
+        if (addresses == null || addresses.isEmpty()) {
+            throw new IOException("no address");
+        }
+        Selector selector = Selector.open();
+        List<Attempt> attempts = new ArrayList<>();
+        Result result = null;
+        IOException lastError = null;
+        try {
+            int next = 0;
+            long nextStart = System.nanoTime();
+            while (result == null) {
+                long now = System.nanoTime();
+                // 到了间隔时间或没有进行中的连接时，发起下一个地址的连接
+                if (next < addresses.size() && (now - nextStart >= 0 || attempts.isEmpty())) {
+                    IpAddress address = addresses.get(next++);
+                    nextStart = now + staggerNanos;
+                    try {
+                        result = start(selector, address, now, attempts);
+                    } catch (IOException e) {
+                        lastError = e;
+                    }
+                    continue;
+                }
+                if (attempts.isEmpty()) {
+                    throw lastError != null ? lastError : new IOException("connect failed");
+                }
+                long wait = earliestDeadline(attempts) - now;
+                if (next < addresses.size()) {
+                    wait = Math.min(wait, nextStart - now);
+                }
+                if (wait > 0) {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext() && result == null) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Attempt attempt = (Attempt) key.attachment();
+                    try {
+                        if (attempt.channel.finishConnect()) {
+                            attempts.remove(attempt);
+                            result = new Result(attempt.channel, attempt.address);
+                        }
+                    } catch (IOException e) {
+                        lastError = e;
+                        attempts.remove(attempt);
+                        closeQuietly(attempt.channel);
+                        // 失败后不再等待间隔，立即尝试下一个地址
+                        nextStart = System.nanoTime();
+                    }
+                }
+                if (result == null) {
+                    int before = attempts.size();
+                    lastError = expire(attempts, lastError);
+                    if (attempts.size() < before) {
+                        nextStart = System.nanoTime();
+                    }
+                }
+            }
+        } finally {
+            for (Attempt attempt : attempts) {
+                closeQuietly(attempt.channel);
+            }
+            // 关闭selector后channel才会从中注销，之后才能切换阻塞模式或注册到其他selector
+            selector.close();
+        }
+        return result;
+    }
+
+    private Result start(Selector selector, IpAddress address, long now, List<Attempt> attempts) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(address.getIp(), address.getPort()))) {
+                return new Result(channel, address);
+            }
+            Attempt attempt = new Attempt(channel, address, now + attemptTimeoutNanos);
+            channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+            attempts.add(attempt);
+            return null;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        } catch (RuntimeException e) {
+            // 地址无法解析等
+            closeQuietly(channel);
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static long earliestDeadline(List<Attempt> attempts) {
+        long earliest = attempts.get(0).deadlineNanos;
+        for (Attempt attempt : attempts) {
+            if (attempt.deadlineNanos - earliest < 0) {
+                earliest = attempt.deadlineNanos;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * 关闭已超时的连接
+     */
+    private static IOException expire(List<Attempt> attempts, IOException lastError) {
+        long now = System.nanoTime();
+        Iterator<Attempt> iterator = attempts.iterator();
+        while (iterator.hasNext()) {
+            Attempt attempt = iterator.next();
+            if (now - attempt.deadlineNanos >= 0) {
+                iterator.remove();
+                closeQuietly(attempt.channel);
+                lastError = new SocketTimeoutException("connect timeout " + attempt.address.getIp() + ":" + attempt.address.getPort());
+            }
+        }
+        return lastError;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.innotech.qrpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每个连接过的地址的请求往返时间
+ * 使用指数加权移动平均，最近的样本权重更大
+ */
+final class EndpointStats {
+    // 新样本的权重
+    private static final double ALPHA = 0.2;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static String key(IpAddress address) {
+        return address.getIp() + ":" + address.getPort();
+    }
+
+    /**
+     * 记录一次请求往返时间
+     */
+    void record(IpAddress address, long rttNanos) {
+        String key = key(address);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry created = new Entry(new IpAddress(address.getIp(), address.getPort()));
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        entry.record(rttNanos);
+    }
+
+    /**
+     * @return 平均往返时间(纳秒)，没有样本时返回-1
+     */
+    long getRttNanos(IpAddress address) {
+        Entry entry = entries.get(key(address));
+        return entry != null ? entry.getRtt() : -1;
+    }
+
+    int getSamples(IpAddress address) {
+        Entry entry = entries.get(key(address));
+        return entry != null ? entry.getSamples() : 0;
+    }
+
+    /**
+     * 按平均往返时间从小到大排序，没有样本的地址保持原顺序排在后面
+     */
+    List<IpAddress> rank(List<IpAddress> addresses) {
+        List<IpAddress> ranked = new ArrayList<>(addresses);
+        final List<IpAddress> original = addresses;
+        Collections.sort(ranked, new Comparator<IpAddress>() {
+            @Override
+            public int compare(IpAddress a, IpAddress b) {
+                long ra = getRttNanos(a);
+                long rb = getRttNanos(b);
+                if (ra >= 0 && rb >= 0) {
+                    return ra < rb ? -1 : (ra > rb ? 1 : 0);
+                }
+                if (ra >= 0 || rb >= 0) {
+                    return ra >= 0 ? -1 : 1;
+                }
+                return original.indexOf(a) - original.indexOf(b);
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * 找出比当前地址快的地址
+     * @param ratio 当前地址的平均往返时间超过候选地址的ratio倍
+     * @param minGapNanos 且至少慢minGapNanos
+     * @param minSamples 两个地址都至少有minSamples个样本
+     * @return 最快的符合条件的地址，没有时返回null
+     */
+    IpAddress findFaster(IpAddress current, double ratio, long minGapNanos, int minSamples) {
+        Entry currentEntry = entries.get(key(current));
+        if (currentEntry == null || currentEntry.getSamples() < minSamples) {
+            return null;
+        }
+        long currentRtt = currentEntry.getRtt();
+        Entry best = null;
+        for (Entry entry : entries.values()) {
+            if (entry == currentEntry || entry.getSamples() < minSamples) {
+                continue;
+            }
+            if (best == null || entry.getRtt() < best.getRtt()) {
+                best = entry;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        long bestRtt = best.getRtt();
+        if (currentRtt > bestRtt * ratio && currentRtt - bestRtt > minGapNanos) {
+            return best.address;
+        }
+        return null;
+    }
+
+    private static final class Entry {
+        final IpAddress address;
+        private long rtt;
+        private int samples;
+
+        Entry(IpAddress address) {
+            this.address = address;
+        }
+
+        synchronized void record(long rttNanos) {
+            rtt = samples == 0 ? rttNanos : (long) (rtt + ALPHA * (rttNanos - rtt));
+            if (samples < Integer.MAX_VALUE) {
+                samples++;
+            }
+        }
+
+        synchronized long getRtt() {
+            return rtt;
+        }
+
+        synchronized int getSamples() {
+            return samples;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.innotech.qrpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * QRPC包解析
+ * 包头16字节：4字节剩余包长、8字节requestID、1字节标志位、3字节命令
+ * 可以分多次喂入数据，一次喂入的数据也可以包含多个包；包头字段直接从缓冲区中读取，不创建临时数组
+ */
+final class FrameDecoder {
+    static final int HEADER_LENGTH = 16;
+    // 剩余包长中包含的requestID、标志位、命令的长度
+    static final int LENGTH_ADJUSTMENT = 12;
+    // 标志位：gzip压缩
+    static final int FLAG_GZIP = 1 << 5;
+    // 标志位：预置字典压缩
+    static final int FLAG_DICTIONARY = 1 << 4;
+    // 标志位：包体为二进制格式，不是UTF-8的JSON
+    static final int FLAG_BINARY = 1 << 3;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_BODY = 1;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    interface Handler {
+        /**
+         * 解析出一个完整的包
+         * @param body 包体，只在回调内有效，需要保留时自行复制
+         */
+        void onFrame(long requestId, int flags, int command, ByteBuffer body);
+    }
+
+    private final Handler handler;
+    // 不完整的包头
+    private final ByteBuffer header;
+    // 不完整的包体，从缓冲区池获取，包体完整并回调后放回
+    private PooledBuffer cumulation;
+    private boolean cumulating;
+    private int state;
+    private int bodyLength;
+    private long requestId;
+    private int flags;
+    private int command;
+
+    FrameDecoder(Handler handler) {
+        this.handler = handler;
+        this.header = ByteBuffer.allocate(HEADER_LENGTH);
+        this.state = STATE_HEADER;
+    }
+
+    /**
+     * 解析in中的全部数据，不完整的部分保留到下次调用
+     */
+    void decode(ByteBuffer in) throws IOException {
+        while (true) {
+            if (state == STATE_HEADER) {
+                if (header.position() == 0 && in.remaining() >= HEADER_LENGTH) {
+                    parseHeader(in, in.position());
+                    in.position(in.position() + HEADER_LENGTH);
+                } else {
+                    if (!in.hasRemaining()) {
+                        return;
+                    }
+                    transfer(in, header);
+                    if (header.hasRemaining()) {
+                        return;
+                    }
+                    parseHeader(header, 0);
+                    header.clear();
+                }
+                if (bodyLength == 0) {
+                    handler.onFrame(requestId, flags, command, EMPTY);
+                    continue;
+                }
+                state = STATE_BODY;
+            }
+
+            if (!cumulating && in.remaining() >= bodyLength) {
+                // 包体完整，直接在in上回调，不复制
+                int limit = in.limit();
+                int end = in.position() + bodyLength;
+                in.limit(end);
+                state = STATE_HEADER;
+                try {
+                    handler.onFrame(requestId, flags, command, in);
+                } finally {
+                    in.limit(limit);
+                    in.position(end);
+                }
+                continue;
+            }
+
+            if (!in.hasRemaining()) {
+                return;
+            }
+            if (!cumulating) {
+                ensureCumulation(bodyLength);
+                cumulating = true;
+            }
+            ByteBuffer body = cumulation.buffer();
+            transfer(in, body);
+            if (body.hasRemaining()) {
+                return;
+            }
+            body.flip();
+            state = STATE_HEADER;
+            cumulating = false;
+            try {
+                handler.onFrame(requestId, flags, command, body);
+            } finally {
+                release();
+            }
+        }
+    }
+
+    private void parseHeader(ByteBuffer buf, int index) throws IOException {
+        int len = buf.getInt(index);
+        if (len < LENGTH_ADJUSTMENT) {
+            throw new IOException("包长度异常:" + len);
+        }
+        requestId = buf.getLong(index + 4);
+        int word = buf.getInt(index + 12);
+        // 第一字节为标志位，后三字节为命令
+        flags = word >>> 24;
+        command = word & 0xFFFFFF;
+        bodyLength = len - LENGTH_ADJUSTMENT;
+    }
+
+    /**
+     * 释放不完整的包体，连接关闭时调用
+     */
+    void release() {
+        if (cumulation != null) {
+            cumulation.release();
+            cumulation = null;
+        }
+    }
+
+    private void ensureCumulation(int len) throws IOException {
+        // 包长度大于闲置空间时，需要重置连接
+        if (!Transport.isMemoryEnough(len)) {
+            throw new IOException("包长度大于闲置空间");
+        }
+        cumulation = BufferPool.heap().allocate(len);
+        cumulation.buffer().limit(len);
+    }
+
+    /**
+     * 从src复制尽量多的数据到dst
+     */
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        dst.put(src);
+        src.limit(limit);
+    }
+}
@@ -0,0 +1,237 @@
+package com.innotech.qrpc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 包体的gzip压缩和解压
+ * 使用nowrap的Deflater直接压缩到包缓冲区，手动写gzip头和CRC32、ISIZE尾部，不经过GZIPOutputStream
+ * 解压时按尾部的ISIZE一次分配输出缓冲区，不逐段扩容；每个线程复用一个Inflater
+ * Deflater、Inflater的本地内存较大，用完后复用
+ */
+final class Gzip {
+    // gzip头：魔数、deflate、无标志、无时间、无额外标志、未知系统
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    static final int HEADER_LENGTH = HEADER.length;
+    // CRC32和ISIZE
+    static final int TRAILER_LENGTH = 8;
+    // 池中最多保留的Deflater
+    private static final int MAX_POOLED = 4;
+
+    private static final ConcurrentLinkedQueue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    // gzip头的标志位
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    // 解压后的最大字节数，超过时视为损坏，避免按伪造的ISIZE分配过大的缓冲区
+    static final int MAX_INFLATED_LENGTH = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private Gzip() {
+    }
+
+    /**
+     * 压缩包体，生成设置了FLAG_GZIP的新包
+     * @param frame 未压缩的完整包，position到limit为内容
+     * @return 压缩后不比原包小时返回null
+     */
+    static PooledBuffer compressFrame(ByteBuffer frame) {
+        int start = frame.position();
+        int bodyOffset = frame.arrayOffset() + start + FrameDecoder.HEADER_LENGTH;
+        int bodyLength = frame.remaining() - FrameDecoder.HEADER_LENGTH;
+        // 压缩后的包体必须小于原包体
+        int limit = bodyLength - 1;
+        if (limit <= HEADER_LENGTH + TRAILER_LENGTH) {
+            return null;
+        }
+        PooledBuffer out = BufferPool.heap().allocate(FrameDecoder.HEADER_LENGTH + limit);
+        Deflater deflater = acquireDeflater();
+        try {
+            byte[] dst = out.buffer().array();
+            int base = out.buffer().arrayOffset();
+            int pos = base + FrameDecoder.HEADER_LENGTH + HEADER_LENGTH;
+            int end = base + FrameDecoder.HEADER_LENGTH + limit - TRAILER_LENGTH;
+            deflater.setInput(frame.array(), bodyOffset, bodyLength);
+            deflater.finish();
+            while (!deflater.finished() && pos < end) {
+                pos += deflater.deflate(dst, pos, end - pos);
+            }
+            if (!deflater.finished()) {
+                out.release();
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(frame.array(), bodyOffset, bodyLength);
+            ByteBuffer data = out.buffer();
+            int compressedLength = pos - base - FrameDecoder.HEADER_LENGTH + TRAILER_LENGTH;
+            // 包头：长度、requestID，标志位加上FLAG_GZIP
+            data.putInt(compressedLength + FrameDecoder.LENGTH_ADJUSTMENT)
+                    .putLong(frame.getLong(start + 4))
+                    .putInt(frame.getInt(start + 12) | (FrameDecoder.FLAG_GZIP << 24))
+                    .put(HEADER);
+            data.position(pos - base);
+            putIntLE(data, (int) crc.getValue());
+            putIntLE(data, bodyLength);
+            data.flip();
+            return out;
+        } finally {
+            releaseDeflater(deflater);
+        }
+    }
+
+    /**
+     * 解压gzip包体到缓冲区池中的缓冲区
+     * @param body position到limit为gzip数据，不改变position
+     * @return 解压后的内容，position为0
+     * @throws DataFormatException 格式错误、长度或CRC32不匹配
+     */
+    static PooledBuffer decompress(ByteBuffer body) throws DataFormatException {
+        PooledBuffer heapBody = null;
+        if (!body.hasArray()) {
+            heapBody = BufferPool.heap().allocate(body.remaining());
+            heapBody.buffer().put(body.duplicate()).flip();
+            body = heapBody.buffer();
+        }
+        try {
+            return decompress(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } finally {
+            if (heapBody != null) {
+                heapBody.release();
+            }
+        }
+    }
+
+    private static PooledBuffer decompress(byte[] src, int offset, int length) throws DataFormatException {
+        int end = offset + length;
+        int pos = skipHeader(src, offset, end);
+        int trailer = end - TRAILER_LENGTH;
+        if (pos > trailer) {
+            throw new DataFormatException("gzip truncated");
+        }
+        int expectedCrc = getIntLE(src, trailer);
+        int inflatedLength = getIntLE(src, trailer + 4);
+        if (inflatedLength < 0 || inflatedLength > MAX_INFLATED_LENGTH) {
+            throw new DataFormatException("gzip size " + (inflatedLength & 0xFFFFFFFFL));
+        }
+        // 多留1字节，解压出比ISIZE多的数据时可以发现
+        int capacity = inflatedLength + 1;
+        PooledBuffer out = BufferPool.heap().allocate(capacity);
+        Inflater inflater = inflater();
+        try {
+            byte[] dst = out.buffer().array();
+            int base = out.buffer().arrayOffset();
+            inflater.setInput(src, pos, trailer - pos);
+            int written = 0;
+            while (!inflater.finished() && written < capacity) {
+                int n = inflater.inflate(dst, base + written, capacity - written);
+                written += n;
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            // 数据提前结束、比ISIZE长或deflate数据后还有多余的字节
+            if (!inflater.finished() || written != inflatedLength || inflater.getRemaining() != 0) {
+                throw new DataFormatException("gzip length mismatch");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(dst, base, written);
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new DataFormatException("gzip crc mismatch");
+            }
+            out.buffer().position(written);
+            out.buffer().flip();
+            return out;
+        } catch (DataFormatException e) {
+            out.release();
+            throw e;
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * @return deflate数据的起始位置
+     */
+    private static int skipHeader(byte[] src, int pos, int end) throws DataFormatException {
+        if (end - pos < HEADER_LENGTH || src[pos] != HEADER[0] || src[pos + 1] != HEADER[1] || src[pos + 2] != 8) {
+            throw new DataFormatException("not gzip");
+        }
+        int flags = src[pos + 3] & 0xFF;
+        pos += HEADER_LENGTH;
+        if ((flags & FEXTRA) != 0) {
+            if (end - pos < 2) {
+                throw new DataFormatException("gzip truncated");
+            }
+            pos += 2 + ((src[pos] & 0xFF) | (src[pos + 1] & 0xFF) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipZeroTerminated(src, pos, end);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = skipZeroTerminated(src, pos, end);
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        return pos;
+    }
+
+    private static int skipZeroTerminated(byte[] src, int pos, int end) throws DataFormatException {
+        while (pos < end) {
+            if (src[pos++] == 0) {
+                return pos;
+            }
+        }
+        throw new DataFormatException("gzip truncated");
+    }
+
+    private static int getIntLE(byte[] src, int pos) {
+        return (src[pos] & 0xFF) | (src[pos + 1] & 0xFF) << 8 | (src[pos + 2] & 0xFF) << 16 | (src[pos + 3] & 0xFF) << 24;
+    }
+
+    private static void putIntLE(ByteBuffer data, int value) {
+        data.put((byte) value).put((byte) (value >>> 8)).put((byte) (value >>> 16)).put((byte) (value >>> 24));
+    }
+
+    /**
+     * 当前线程复用的nowrap Inflater，用完后reset
+     */
+    static Inflater inflater() {
+        return INFLATER.get();
+    }
+
+    /**
+     * 从池中取出nowrap Deflater，用完后releaseDeflater
+     */
+    static Deflater acquireDeflater() {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        POOLED.decrementAndGet();
+        return deflater;
+    }
+
+    static void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            DEFLATERS.offer(deflater);
+        } else {
+            POOLED.decrementAndGet();
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.innotech.qrpc;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个连接的心跳
+ * 定时检查读/写空闲时间：空闲超过心跳间隔时发送心跳包，超过心跳间隔加超时时间仍未读到数据时认为连接已断开
+ * 检查任务在控制线程中执行
+ */
+final class Heartbeat implements Runnable {
+
+    interface Listener {
+        /**
+         * 连接空闲，需要发送心跳包
+         */
+        void onPing(Transport transport);
+
+        /**
+         * 超过心跳间隔加超时时间未读到数据
+         */
+        void onTimeout(Transport transport, String reason);
+    }
+
+    // 两次检查的最小间隔
+    private static final long MIN_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final ScheduledExecutorService executor;
+    private final Transport transport;
+    private final Listener listener;
+    private final long timeoutNanos;
+    private long intervalNanos;
+    // 上次发送心跳包的时间，只在控制线程中访问
+    private long lastPingNanos;
+    private ScheduledFuture<?> future;
+    private boolean stopped;
+
+    Heartbeat(ScheduledExecutorService executor, Transport transport, Listener listener, long intervalNanos, long timeoutNanos) {
+        this.executor = executor;
+        this.transport = transport;
+        this.listener = listener;
+        this.intervalNanos = intervalNanos;
+        this.timeoutNanos = timeoutNanos;
+        this.lastPingNanos = System.nanoTime();
+    }
+
+    void start() {
+        schedule(nextCheckDelay());
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    /**
+     * 修改心跳间隔，立即检查一次
+     */
+    synchronized void setInterval(long intervalNanos) {
+        this.intervalNanos = intervalNanos;
+        schedule(0);
+    }
+
+    @Override
+    public void run() {
+        long interval;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            interval = intervalNanos;
+        }
+        long now = System.nanoTime();
+        long readIdle = now - transport.getLastReadNanos();
+        long writeIdle = now - transport.getLastWriteNanos();
+        if (readIdle >= interval + timeoutNanos) {
+            stop();
+            listener.onTimeout(transport, "方法:heartbeat,心跳超时,读空闲:" + TimeUnit.NANOSECONDS.toMillis(readIdle) + "ms");
+            return;
+        }
+        // 写队列超过高水位时不再放入心跳包，是否断开只看读空闲时间
+        if ((readIdle >= interval || writeIdle >= interval) && now - lastPingNanos >= interval && transport.isWritable()) {
+            lastPingNanos = now;
+            listener.onPing(transport);
+        }
+        schedule(nextCheckDelay());
+    }
+
+    private synchronized long nextCheckDelay() {
+        return Math.max(MIN_CHECK_NANOS, Math.min(intervalNanos, timeoutNanos) / 2);
+    }
+
+    private synchronized void schedule(long delayNanos) {
+        if (stopped) {
+            return;
+        }
+        if (future != null) {
+            future.cancel(false);
+        }
+        future = executor.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+    }
+}
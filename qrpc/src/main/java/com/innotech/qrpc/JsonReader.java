@@ -0,0 +1,607 @@
+package com.innotech.qrpc;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+
+/**
+ * 流式读JSON，直接解析包体中的UTF-8字节，不创建JSONObject
+ * 字段名可以用Names按字节匹配，不需要为每个字段名创建String
+ * nextLong、nextInt、nextDouble也接受字符串形式的数字
+ */
+public final class JsonReader {
+    public static final int BEGIN_OBJECT = 1;
+    public static final int END_OBJECT = 2;
+    public static final int BEGIN_ARRAY = 3;
+    public static final int END_ARRAY = 4;
+    public static final int NAME = 5;
+    public static final int STRING = 6;
+    public static final int NUMBER = 7;
+    public static final int BOOLEAN = 8;
+    public static final int NULL = 9;
+    public static final int END_DOCUMENT = 10;
+
+    // 当前所在的层级
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    // 已读字段名，还没有读值
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private static final int PEEKED_NONE = 0;
+
+    private final byte[] buf;
+    private final int offset;
+    private final int limit;
+    private int pos;
+    private int[] stack = new int[8];
+    private int depth;
+    // peek的结果，读取后清除；字符串和字段名的开始引号、true、false、null已读过
+    private int peeked = PEEKED_NONE;
+    private boolean peekedBoolean;
+
+    /**
+     * @param body position到limit为内容，不改变position
+     */
+    public JsonReader(ByteBuffer body) {
+        if (body.hasArray()) {
+            buf = body.array();
+            offset = body.arrayOffset() + body.position();
+        } else {
+            buf = new byte[body.remaining()];
+            body.duplicate().get(buf);
+            offset = 0;
+        }
+        pos = offset;
+        limit = offset + body.remaining();
+        stack[depth++] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * 下一个元素的类型
+     * @return BEGIN_OBJECT等常量
+     */
+    public int peek() throws IOException {
+        if (peeked == PEEKED_NONE) {
+            peeked = doPeek();
+        }
+        return peeked;
+    }
+
+    public void beginObject() throws IOException {
+        expect(BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(END_OBJECT);
+        depth--;
+    }
+
+    public void beginArray() throws IOException {
+        expect(BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(END_ARRAY);
+        depth--;
+    }
+
+    /**
+     * 当前对象或数组中还有元素
+     */
+    public boolean hasNext() throws IOException {
+        int p = peek();
+        return p != END_OBJECT && p != END_ARRAY && p != END_DOCUMENT;
+    }
+
+    public String nextName() throws IOException {
+        expect(NAME);
+        return readString();
+    }
+
+    /**
+     * 读字段名并在names中查找，不创建String
+     * @return names中的下标，不存在时返回-1，通常接着skipValue
+     */
+    public int nextName(Names names) throws IOException {
+        expect(NAME);
+        int start = pos;
+        for (int p = start; p < limit; p++) {
+            byte b = buf[p];
+            if (b == '"') {
+                pos = p + 1;
+                return names.indexOf(buf, start, p - start);
+            }
+            if (b == '\\') {
+                return names.indexOf(readString());
+            }
+        }
+        throw syntaxError("字符串未结束");
+    }
+
+    /**
+     * 字符串；数字返回原文
+     */
+    public String nextString() throws IOException {
+        int p = peek();
+        if (p == STRING) {
+            peeked = PEEKED_NONE;
+            return readString();
+        }
+        if (p == NUMBER) {
+            peeked = PEEKED_NONE;
+            return readNumber();
+        }
+        throw unexpected("字符串");
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(BOOLEAN);
+        return peekedBoolean;
+    }
+
+    public void nextNull() throws IOException {
+        expect(NULL);
+    }
+
+    /**
+     * @throws IOException 不是整数或超出long的范围
+     */
+    public long nextLong() throws IOException {
+        int p = peek();
+        if (p == NUMBER) {
+            peeked = PEEKED_NONE;
+            int start = pos;
+            long value = parseLong();
+            if (value != Long.MIN_VALUE || pos > start) {
+                return value;
+            }
+            // 小数或指数形式
+            pos = start;
+            return toLong(readNumber());
+        }
+        if (p == STRING) {
+            peeked = PEEKED_NONE;
+            return toLong(readString());
+        }
+        throw unexpected("数字");
+    }
+
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw syntaxError("超出int的范围:" + value);
+        }
+        return (int) value;
+    }
+
+    public double nextDouble() throws IOException {
+        int p = peek();
+        String text;
+        if (p == NUMBER) {
+            peeked = PEEKED_NONE;
+            text = readNumber();
+        } else if (p == STRING) {
+            peeked = PEEKED_NONE;
+            text = readString();
+        } else {
+            throw unexpected("数字");
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw syntaxError("不是数字:" + text);
+        }
+    }
+
+    /**
+     * 跳过下一个值，包括嵌套的对象和数组；在字段名处调用时跳过字段名
+     */
+    public void skipValue() throws IOException {
+        int count = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    count++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    count++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    count--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    count--;
+                    break;
+                case NAME:
+                case STRING:
+                    peeked = PEEKED_NONE;
+                    skipString();
+                    break;
+                case NUMBER:
+                    peeked = PEEKED_NONE;
+                    skipNumber();
+                    break;
+                case END_DOCUMENT:
+                    throw syntaxError("内容不完整");
+                default:
+                    peeked = PEEKED_NONE;
+                    break;
+            }
+        } while (count > 0);
+    }
+
+    private int doPeek() throws IOException {
+        int scope = stack[depth - 1];
+        switch (scope) {
+            case EMPTY_ARRAY:
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                break;
+            case NONEMPTY_ARRAY: {
+                int c = nextNonWhitespace();
+                if (c == ']') {
+                    return END_ARRAY;
+                }
+                if (c != ',') {
+                    throw syntaxError("缺少逗号");
+                }
+                break;
+            }
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT: {
+                int c = nextNonWhitespace();
+                if (c == '}') {
+                    return END_OBJECT;
+                }
+                if (scope == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("缺少逗号");
+                    }
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntaxError("应为字段名");
+                }
+                stack[depth - 1] = DANGLING_NAME;
+                return NAME;
+            }
+            case DANGLING_NAME:
+                if (nextNonWhitespace() != ':') {
+                    throw syntaxError("缺少冒号");
+                }
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                break;
+            case EMPTY_DOCUMENT:
+                stack[depth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            default:
+                if (nextNonWhitespace() != -1) {
+                    throw syntaxError("多余的内容");
+                }
+                return END_DOCUMENT;
+        }
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return BEGIN_OBJECT;
+            case '[':
+                return BEGIN_ARRAY;
+            case ']':
+                if (scope == EMPTY_ARRAY) {
+                    return END_ARRAY;
+                }
+                throw syntaxError("意外的]");
+            case '"':
+                return STRING;
+            case 't':
+                expectLiteral("rue");
+                peekedBoolean = true;
+                return BOOLEAN;
+            case 'f':
+                expectLiteral("alse");
+                peekedBoolean = false;
+                return BOOLEAN;
+            case 'n':
+                expectLiteral("ull");
+                return NULL;
+            case -1:
+                throw syntaxError("内容不完整");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pos--;
+                    return NUMBER;
+                }
+                throw syntaxError("意外的字符" + (char) c);
+        }
+    }
+
+    private void expect(int token) throws IOException {
+        if (peek() != token) {
+            throw unexpected(tokenName(token));
+        }
+        peeked = PEEKED_NONE;
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length) {
+            int[] grown = new int[depth << 1];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+        }
+        stack[depth++] = scope;
+    }
+
+    /**
+     * 读下一个非空白字符
+     * @return 结尾时返回-1
+     */
+    private int nextNonWhitespace() {
+        while (pos < limit) {
+            int c = buf[pos++] & 0xFF;
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private void expectLiteral(String rest) throws IOException {
+        int n = rest.length();
+        if (limit - pos < n) {
+            throw syntaxError("内容不完整");
+        }
+        for (int i = 0; i < n; i++) {
+            if (buf[pos + i] != rest.charAt(i)) {
+                throw syntaxError("意外的字符");
+            }
+        }
+        pos += n;
+    }
+
+    /**
+     * 开始引号之后的字符串，没有转义时直接解码
+     */
+    private String readString() throws IOException {
+        int start = pos;
+        for (int p = start; p < limit; p++) {
+            byte b = buf[p];
+            if (b == '"') {
+                pos = p + 1;
+                return new String(buf, start, p - start, Utf8.UTF_8);
+            }
+            if (b == '\\') {
+                return readEscaped(start, p);
+            }
+        }
+        throw syntaxError("字符串未结束");
+    }
+
+    private String readEscaped(int start, int p) throws IOException {
+        StringBuilder sb = new StringBuilder(p - start + 16);
+        while (true) {
+            sb.append(new String(buf, start, p - start, Utf8.UTF_8));
+            if (buf[p] == '"') {
+                pos = p + 1;
+                return sb.toString();
+            }
+            // 转义
+            if (++p >= limit) {
+                throw syntaxError("字符串未结束");
+            }
+            byte e = buf[p++];
+            switch (e) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    if (limit - p < 4) {
+                        throw syntaxError("字符串未结束");
+                    }
+                    int c = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int d = Character.digit(buf[p++], 16);
+                        if (d < 0) {
+                            throw syntaxError("错误的转义");
+                        }
+                        c = (c << 4) | d;
+                    }
+                    sb.append((char) c);
+                    break;
+                default:
+                    // \" \\ \/
+                    sb.append((char) e);
+                    break;
+            }
+            start = p;
+            while (p < limit && buf[p] != '"' && buf[p] != '\\') {
+                p++;
+            }
+            if (p >= limit) {
+                throw syntaxError("字符串未结束");
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        for (int p = pos; p < limit; p++) {
+            byte b = buf[p];
+            if (b == '\\') {
+                p++;
+            } else if (b == '"') {
+                pos = p + 1;
+                return;
+            }
+        }
+        throw syntaxError("字符串未结束");
+    }
+
+    private String readNumber() {
+        int start = pos;
+        skipNumber();
+        return new String(buf, start, pos - start, Utf8.UTF_8);
+    }
+
+    private void skipNumber() {
+        while (pos < limit) {
+            byte b = buf[pos];
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 直接解析整数
+     * @return 不是整数或溢出时返回Long.MIN_VALUE，pos不变
+     */
+    private long parseLong() {
+        int p = pos;
+        boolean negative = p < limit && buf[p] == '-';
+        if (negative) {
+            p++;
+        }
+        int digitsStart = p;
+        // 按负数累加，可以表示Long.MIN_VALUE
+        long value = 0;
+        while (p < limit) {
+            int d = buf[p] - '0';
+            if (d < 0 || d > 9) {
+                break;
+            }
+            if (value < (Long.MIN_VALUE + d) / 10) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 - d;
+            p++;
+        }
+        if (p == digitsStart) {
+            return Long.MIN_VALUE;
+        }
+        if (p < limit) {
+            byte b = buf[p];
+            if (b == '.' || b == 'e' || b == 'E') {
+                return Long.MIN_VALUE;
+            }
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                return Long.MIN_VALUE;
+            }
+            value = -value;
+        }
+        pos = p;
+        return value;
+    }
+
+    private long toLong(String text) throws IOException {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            // 1.0、1e3等
+        }
+        try {
+            // 按十进制精确判断，转为double会把超出范围的整数舍入到边界上
+            return new BigDecimal(text).longValueExact();
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw syntaxError("不是整数:" + text);
+        }
+    }
+
+    private IOException unexpected(String expected) throws IOException {
+        return syntaxError("应为" + expected + "，实际为" + tokenName(peek()));
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("JSON格式错误:" + message + "，位置:" + (pos - offset));
+    }
+
+    private static String tokenName(int token) {
+        switch (token) {
+            case BEGIN_OBJECT:
+                return "{";
+            case END_OBJECT:
+                return "}";
+            case BEGIN_ARRAY:
+                return "[";
+            case END_ARRAY:
+                return "]";
+            case NAME:
+                return "字段名";
+            case STRING:
+                return "字符串";
+            case NUMBER:
+                return "数字";
+            case BOOLEAN:
+                return "布尔值";
+            case NULL:
+                return "null";
+            default:
+                return "结尾";
+        }
+    }
+
+    /**
+     * 一个对象的字段名，创建一次后复用
+     */
+    public static final class Names {
+        private final String[] names;
+        private final byte[][] bytes;
+
+        public Names(String... names) {
+            this.names = names.clone();
+            this.bytes = new byte[names.length][];
+            for (int i = 0; i < names.length; i++) {
+                bytes[i] = names[i].getBytes(Utf8.UTF_8);
+            }
+        }
+
+        int indexOf(byte[] src, int start, int length) {
+            for (int i = 0; i < bytes.length; i++) {
+                byte[] name = bytes[i];
+                if (name.length != length) {
+                    continue;
+                }
+                int j = 0;
+                while (j < length && name[j] == src[start + j]) {
+                    j++;
+                }
+                if (j == length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int indexOf(String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
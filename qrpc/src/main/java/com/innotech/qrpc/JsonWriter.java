@@ -0,0 +1,180 @@
+package com.innotech.qrpc;
+
+/**
+ * 流式写JSON，UTF-8直接写入包缓冲区，不创建JSONObject或中间的String
+ * 只检查逗号和冒号的位置，不检查对象、数组是否配对
+ */
+public final class JsonWriter {
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    private final BodyWriter out;
+    // 每层对象、数组中是否已写过值，决定下一个值前是否写逗号
+    private boolean[] hasValue = new boolean[8];
+    private int depth;
+    // 刚写完名字，下一个值前不写逗号
+    private boolean afterName;
+    private final byte[] digits = new byte[20];
+
+    public JsonWriter(BodyWriter out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        out.writeByte('{');
+        push();
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        depth--;
+        out.writeByte('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        out.writeByte('[');
+        push();
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        depth--;
+        out.writeByte(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        beforeValue();
+        writeString(name);
+        out.writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * @param value 为null时写null
+     */
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        if (value == Long.MIN_VALUE) {
+            out.writeUtf8("-9223372036854775808");
+            return this;
+        }
+        if (value < 0) {
+            out.writeByte('-');
+            value = -value;
+        }
+        int p = digits.length;
+        do {
+            digits[--p] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        out.write(digits, p, digits.length - p);
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException NaN或无穷大
+     */
+    public JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON不支持的数字:" + value);
+        }
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            return value((long) value);
+        }
+        beforeValue();
+        out.writeUtf8(Double.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        out.write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        beforeValue();
+        out.write(NULL);
+        return this;
+    }
+
+    private void push() {
+        if (depth == hasValue.length) {
+            boolean[] grown = new boolean[depth << 1];
+            System.arraycopy(hasValue, 0, grown, 0, depth);
+            hasValue = grown;
+        }
+        hasValue[depth++] = false;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (hasValue[depth - 1]) {
+                out.writeByte(',');
+            }
+            hasValue[depth - 1] = true;
+        }
+    }
+
+    /**
+     * 写带引号的字符串，不需要转义的连续字符一次编码
+     */
+    private void writeString(String s) {
+        out.writeByte('"');
+        int len = s.length();
+        int run = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            byte escape;
+            if (c == '"' || c == '\\') {
+                escape = (byte) c;
+            } else if (c >= 0x20 && c != '\u2028' && c != '\u2029') {
+                continue;
+            } else if (c == '\n') {
+                escape = 'n';
+            } else if (c == '\r') {
+                escape = 'r';
+            } else if (c == '\t') {
+                escape = 't';
+            } else {
+                escape = 0;
+            }
+            if (run < i) {
+                out.writeUtf8(s, run, i);
+            }
+            run = i + 1;
+            out.writeByte('\\');
+            if (escape != 0) {
+                out.writeByte(escape);
+            } else {
+                // 控制字符和JavaScript中的行分隔符写为4位十六进制的转义
+                out.writeByte('u').writeByte(HEX[c >>> 12]).writeByte(HEX[(c >>> 8) & 0xF])
+                        .writeByte(HEX[(c >>> 4) & 0xF]).writeByte(HEX[c & 0xF]);
+            }
+        }
+        if (run < len) {
+            out.writeUtf8(s, run, len);
+        }
+        out.writeByte('"');
+    }
+}
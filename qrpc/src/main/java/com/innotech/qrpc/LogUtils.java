@@ -12,7 +12,7 @@ public class LogUtils {
 
     public static final String TAG = "it_chat";
 
-    private static boolean isDebug() {
+    static boolean isDebug() {
         if (ChatManager.getEnvironment() == null) {
             if (!BuildConfig.DEBUG) {
                 return false;
@@ -0,0 +1,224 @@
+package com.innotech.qrpc;
+
+import java.util.List;
+
+/**
+ * long为key的并发map
+ * key不装箱；按key的hash分段加锁，每段为线性探测的开放寻址表，删除时后移填补空位，不留墓碑
+ */
+final class LongObjectMap<V> {
+    private static final int STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Stripe<V>[] stripes;
+
+    LongObjectMap() {
+        @SuppressWarnings("unchecked")
+        Stripe<V>[] stripes = (Stripe<V>[]) new Stripe<?>[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe<>();
+        }
+        this.stripes = stripes;
+    }
+
+    /**
+     * @return key原来对应的value
+     */
+    V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        long h = hash(key);
+        return stripeFor(h).put(key, h, value);
+    }
+
+    V get(long key) {
+        long h = hash(key);
+        return stripeFor(h).get(key, h);
+    }
+
+    /**
+     * 移除并返回key对应的value
+     */
+    V remove(long key) {
+        long h = hash(key);
+        return stripeFor(h).remove(key, h, null);
+    }
+
+    /**
+     * key对应的value为value时才移除
+     * @return 是否移除
+     */
+    boolean remove(long key, V value) {
+        long h = hash(key);
+        return stripeFor(h).remove(key, h, value) != null;
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe<V> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * 移除全部value，放入to中
+     */
+    void drainTo(List<V> to) {
+        for (Stripe<V> stripe : stripes) {
+            stripe.drainTo(to);
+        }
+    }
+
+    /**
+     * 把全部value复制到to中，不移除
+     */
+    void valuesTo(List<V> to) {
+        for (Stripe<V> stripe : stripes) {
+            stripe.valuesTo(to);
+        }
+    }
+
+    private Stripe<V> stripeFor(long h) {
+        // 高位选段，低位在段内寻址
+        return stripes[(int) (h >>> 60) & (STRIPES - 1)];
+    }
+
+    // murmur3 fmix64，requestID递增且最低位固定，需要打散
+    static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static final class Stripe<V> {
+        private long[] keys;
+        private Object[] values;
+        private int size;
+
+        Stripe() {
+            keys = new long[INITIAL_CAPACITY];
+            values = new Object[INITIAL_CAPACITY];
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(long key, long h) {
+            int mask = keys.length - 1;
+            for (int i = (int) h & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return (V) values[i];
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(long key, long h, V value) {
+            int mask = keys.length - 1;
+            int i = (int) h & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    V old = (V) values[i];
+                    values[i] = value;
+                    return old;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            // 装载因子超过0.5时扩容
+            if (++size > (keys.length >> 1)) {
+                rehash(keys.length << 1);
+            }
+            return null;
+        }
+
+        /**
+         * expect不为null时，只有value相同才移除
+         */
+        @SuppressWarnings("unchecked")
+        synchronized V remove(long key, long h, V expect) {
+            int mask = keys.length - 1;
+            for (int i = (int) h & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    V old = (V) values[i];
+                    if (expect != null && old != expect) {
+                        return null;
+                    }
+                    deleteAt(i);
+                    size--;
+                    return old;
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void drainTo(List<V> to) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    to.add((V) values[i]);
+                    values[i] = null;
+                }
+            }
+            size = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void valuesTo(List<V> to) {
+            for (Object value : values) {
+                if (value != null) {
+                    to.add((V) value);
+                }
+            }
+        }
+
+        /**
+         * 删除i位置的元素，把后面探测链上的元素前移，保证查找不中断
+         */
+        private void deleteAt(int i) {
+            int mask = keys.length - 1;
+            int gap = i;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (values[j] == null) {
+                    break;
+                }
+                int home = (int) hash(keys[j]) & mask;
+                // home不在(gap, j]之间时，元素可以移动到gap
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            values[gap] = null;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    int j = (int) hash(oldKeys[i]) & mask;
+                    while (values[j] != null) {
+                        j = (j + 1) & mask;
+                    }
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.innotech.qrpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界多生产者单消费者环形队列
+ * 槽位预先分配，生产者通过CAS占位，不加锁、不创建节点；每个槽位的序号标记该槽位是否可写/可读
+ * poll、peek同一时刻只能有一个线程调用
+ */
+final class MpscRingBuffer<E> {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    // 槽位序号：等于写位置时可写，等于写位置+1时可读
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    private volatile long head;
+
+    /**
+     * @param capacity 容量，会调整为2的幂
+     */
+    MpscRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.tail = new AtomicLong();
+    }
+
+    /**
+     * 放入队尾，可多线程调用
+     * @return 队列已满返回false
+     */
+    boolean offer(E e) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long dif = sequences.get(index) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(index, e);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (dif < 0) {
+                // 消费者还未取走一圈前的元素
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 取出队首，队列为空返回null
+     */
+    E poll() {
+        long pos = head;
+        int index = (int) pos & mask;
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        E e = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.set(index, pos + capacity);
+        head = pos + 1;
+        return e;
+    }
+
+    /**
+     * 查看队首，不取出
+     */
+    E peek() {
+        long pos = head;
+        int index = (int) pos & mask;
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        return buffer.get(index);
+    }
+
+    boolean isEmpty() {
+        return peek() == null;
+    }
+
+    int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
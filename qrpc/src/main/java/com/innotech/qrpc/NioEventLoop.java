@@ -0,0 +1,177 @@
+package com.innotech.qrpc;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 非阻塞IO事件循环
+ * 一个线程持有一个Selector，负责所有注册连接的读写，进程内的连接共享同一个默认实例
+ */
+final class NioEventLoop implements Runnable {
+
+    interface Handler {
+        // 可读
+        void onReadable();
+
+        // 可写
+        void onWritable();
+    }
+
+    private static NioEventLoop defaultLoop;
+
+    private final Selector selector;
+    private final Thread thread;
+    // 其他线程提交到事件循环中执行的任务
+    private final ConcurrentLinkedQueue<Runnable> taskQueue;
+    // 是否已唤醒selector，避免重复wakeup
+    private final AtomicBoolean wakenUp;
+    // 延迟任务，只在事件循环线程中访问
+    private final PriorityQueue<ScheduledTask> scheduledTasks;
+
+    static synchronized NioEventLoop getDefault() throws IOException {
+        if (defaultLoop == null) {
+            defaultLoop = new NioEventLoop();
+        }
+        return defaultLoop;
+    }
+
+    private NioEventLoop() throws IOException {
+        selector = Selector.open();
+        taskQueue = new ConcurrentLinkedQueue<>();
+        wakenUp = new AtomicBoolean(false);
+        scheduledTasks = new PriorityQueue<>();
+        thread = new Thread(this, "qrpc-nio");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 当前线程是否为事件循环线程
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 在事件循环线程中执行任务
+     */
+    void execute(Runnable task) {
+        taskQueue.offer(task);
+        if (!inEventLoop() && wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 延迟delayNanos后在事件循环线程中执行任务，精度为毫秒
+     */
+    void schedule(Runnable task, long delayNanos) {
+        final ScheduledTask scheduledTask = new ScheduledTask(System.nanoTime() + delayNanos, task);
+        if (inEventLoop()) {
+            scheduledTasks.add(scheduledTask);
+        } else {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    scheduledTasks.add(scheduledTask);
+                }
+            });
+        }
+    }
+
+    /**
+     * 注册channel，只能在事件循环线程中调用
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                wakenUp.set(false);
+                if (!taskQueue.isEmpty()) {
+                    selector.selectNow();
+                } else if (!scheduledTasks.isEmpty()) {
+                    long delay = scheduledTasks.peek().deadlineNanos - System.nanoTime();
+                    if (delay > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay)));
+                    } else {
+                        selector.selectNow();
+                    }
+                } else {
+                    selector.select();
+                }
+                processSelectedKeys();
+                runScheduledTasks();
+                runAllTasks();
+            } catch (Throwable e) {
+                LogUtils.e("方法:NioEventLoop.run,异常:" + e.getMessage());
+                IMReport.getInstance().report("方法:NioEventLoop.run,异常:" + e.getMessage());
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            Handler handler = (Handler) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    handler.onWritable();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    handler.onReadable();
+                }
+            } catch (Exception e) {
+                // 单个连接的异常不能影响其他连接
+                LogUtils.e("方法:NioEventLoop.processSelectedKeys,异常:" + e.getMessage());
+            }
+        }
+    }
+
+    private void runScheduledTasks() {
+        long now = System.nanoTime();
+        while (!scheduledTasks.isEmpty() && scheduledTasks.peek().deadlineNanos - now <= 0) {
+            taskQueue.offer(scheduledTasks.poll().task);
+        }
+    }
+
+    private void runAllTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LogUtils.e("方法:NioEventLoop.runAllTasks,异常:" + e.getMessage());
+            }
+        }
+    }
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        private final long deadlineNanos;
+        private final Runnable task;
+
+        ScheduledTask(long deadlineNanos, Runnable task) {
+            this.deadlineNanos = deadlineNanos;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask o) {
+            long d = deadlineNanos - o.deadlineNanos;
+            return d < 0 ? -1 : (d > 0 ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.innotech.qrpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 非阻塞IO实现
+ * 读写都在NioEventLoop线程中完成，不额外创建线程
+ */
+class NioTransport extends Transport implements NioEventLoop.Handler {
+    private final NioEventLoop eventLoop;
+    private SocketChannel channel;
+    private SelectionKey selectionKey;
+    private volatile boolean closed;
+    // 读缓冲区和包解析器，只在事件循环线程中访问
+    private PooledBuffer readBuffer;
+    private FrameDecoder frameDecoder;
+    // 正在合并写的消息，事件循环线程写入时和close取出时都要持有writingLock
+    private final Object writingLock = new Object();
+    private WriteData[] writing;
+    private ByteBuffer[] writeBuffers;
+    private int writingCount;
+    // 已写完待回调的消息，只在事件循环线程中访问
+    private WriteData[] written;
+    // 是否已提交写任务
+    private final AtomicBoolean flushScheduled;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    NioTransport(NioEventLoop eventLoop, Listener listener) {
+        super(listener);
+        this.eventLoop = eventLoop;
+        this.flushScheduled = new AtomicBoolean(false);
+    }
+
+    @Override
+    void connect(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.socket().setKeepAlive(true);
+        channel.configureBlocking(false);
+    }
+
+    @Override
+    void start() {
+        // 直接内存读缓冲区，channel读取时不需要再经过临时缓冲区
+        readBuffer = BufferPool.direct().allocate(READ_BUFFER_SIZE);
+        frameDecoder = newFrameDecoder();
+        writing = new WriteData[maxWriteCount];
+        writeBuffers = new ByteBuffer[maxWriteCount];
+        written = new WriteData[maxWriteCount];
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (closed) {
+                    releaseBuffers();
+                    return;
+                }
+                try {
+                    selectionKey = eventLoop.register(channel, SelectionKey.OP_READ, NioTransport.this);
+                    // 注册前已放入队列的消息
+                    flush();
+                } catch (IOException e) {
+                    fail("方法:NioTransport.start,注册异常:" + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    boolean isConnected() {
+        SocketChannel ch = channel;
+        return !closed && ch != null && ch.isConnected();
+    }
+
+    @Override
+    boolean write(WriteData data) {
+        if (!super.write(data)) {
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    @Override
+    protected void doClose() {
+        closed = true;
+        if (channel != null) {
+            try {
+                // 关闭channel会同时取消SelectionKey
+                channel.close();
+            } catch (IOException e) {
+                //
+            }
+        }
+        // 读缓冲区只在事件循环线程中访问，在事件循环中释放
+        if (eventLoop.inEventLoop()) {
+            releaseBuffers();
+        } else {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    releaseBuffers();
+                }
+            });
+        }
+    }
+
+    /**
+     * 未写完的消息和写队列中的消息一起由close返回，由调用方决定重发或回调失败
+     */
+    @Override
+    void drainUnsent(List<WriteData> pending) {
+        synchronized (writingLock) {
+            for (int i = 0; i < writingCount; i++) {
+                pending.add(writing[i]);
+                writing[i] = null;
+                writeBuffers[i] = null;
+            }
+            writingCount = 0;
+        }
+    }
+
+    private void releaseBuffers() {
+        if (frameDecoder != null) {
+            frameDecoder.release();
+        }
+        if (readBuffer != null) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (lingerNanos > 0 && pendingWriteCount() < maxWriteCount) {
+                // 等待一段时间，合并更多消息后再写
+                eventLoop.schedule(flushTask, lingerNanos);
+            } else {
+                eventLoop.execute(flushTask);
+            }
+        }
+    }
+
+    @Override
+    public void onReadable() {
+        try {
+            ByteBuffer buf = readBuffer.buffer();
+            int n = channel.read(buf);
+            if (n == -1) {
+                fail("方法:NioTransport.onReadable,读到-1");
+                return;
+            }
+            if (n > 0) {
+                markRead();
+            }
+            buf.flip();
+            frameDecoder.decode(buf);
+            buf.clear();
+            listener.onReadComplete(this);
+        } catch (Exception e) {
+            fail("方法:NioTransport.onReadable,读异常:" + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onWritable() {
+        flush();
+    }
+
+    /**
+     * 把写队列中的消息合并后一次写入channel，channel写满时等待OP_WRITE
+     */
+    private void flush() {
+        if (closed || selectionKey == null) {
+            flushScheduled.set(false);
+            return;
+        }
+        try {
+            while (true) {
+                int done;
+                boolean full;
+                // 回调不在锁内执行
+                synchronized (writingLock) {
+                    if (closed) {
+                        flushScheduled.set(false);
+                        return;
+                    }
+                    collectBatch();
+                    if (writingCount == 0) {
+                        flushScheduled.set(false);
+                        // 重置标记后再检查一次，避免遗漏并发放入的消息
+                        if (!hasPendingWrite() || !flushScheduled.compareAndSet(false, true)) {
+                            setWriteInterest(false);
+                            return;
+                        }
+                        continue;
+                    }
+                    channel.write(writeBuffers, 0, writingCount);
+                    done = takeWritten();
+                    full = writingCount > 0;
+                }
+                completeWritten(done);
+                if (full) {
+                    // 发送缓冲区已满，等待可写
+                    setWriteInterest(true);
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            flushScheduled.set(false);
+            fail("方法:NioTransport.flush,写异常:" + e.getMessage());
+        }
+    }
+
+    /**
+     * 从写队列中取消息，直到队列为空或达到字节数、消息数上限
+     */
+    private void collectBatch() {
+        int bytes = 0;
+        for (int i = 0; i < writingCount; i++) {
+            bytes += writeBuffers[i].remaining();
+        }
+        while (writingCount < writing.length) {
+            WriteData next = pollWrite(writingCount == 0 ? Integer.MAX_VALUE : maxWriteBytes - bytes);
+            if (next == null) {
+                return;
+            }
+            ByteBuffer frame = next.getFrame();
+            writing[writingCount] = next;
+            writeBuffers[writingCount] = frame;
+            writingCount++;
+            bytes += frame.remaining();
+        }
+    }
+
+    /**
+     * 把已写完的消息移到written数组，返回条数，持有writingLock时调用
+     */
+    private int takeWritten() {
+        int done = 0;
+        while (done < writingCount && !writeBuffers[done].hasRemaining()) {
+            done++;
+        }
+        if (done == 0) {
+            return 0;
+        }
+        System.arraycopy(writing, 0, written, 0, done);
+        int remaining = writingCount - done;
+        System.arraycopy(writing, done, writing, 0, remaining);
+        System.arraycopy(writeBuffers, done, writeBuffers, 0, remaining);
+        for (int i = remaining; i < writingCount; i++) {
+            writing[i] = null;
+            writeBuffers[i] = null;
+        }
+        writingCount = remaining;
+        return done;
+    }
+
+    /**
+     * 前done条消息已写完，回调写成功
+     */
+    private void completeWritten(int done) {
+        if (done == 0) {
+            return;
+        }
+        markWritten();
+        for (int i = 0; i < done; i++) {
+            WriteData data = written[i];
+            written[i] = null;
+            data.releaseFrame();
+            data.setWriteState(WriteData.WRITE_SUCCESS);
+            listener.onWritten(this, data);
+        }
+        LogUtils.e("write success");
+    }
+
+    private void setWriteInterest(boolean interested) {
+        if (selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+        int ops = selectionKey.interestOps();
+        if (interested) {
+            selectionKey.interestOps(ops | SelectionKey.OP_WRITE);
+        } else if ((ops & SelectionKey.OP_WRITE) != 0) {
+            selectionKey.interestOps(ops & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void fail(String reason) {
+        if (closed) {
+            return;
+        }
+        doClose();
+        listener.onError(this, reason);
+    }
+}
@@ -0,0 +1,102 @@
+package com.innotech.qrpc;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 在线程池中处理回包
+ * 同一个key的任务按提交顺序串行执行，不同key并行；等待执行的任务达到上限时提交线程等待
+ * 读线程因此停止读socket，由TCP接收窗口把压力传回服务端
+ */
+final class OrderedDispatcher {
+    // 一个key连续执行的任务数，超过后重新排队，避免长期占用线程
+    private static final int MAX_RUN_PER_KEY = 64;
+
+    private final Executor executor;
+    private final Semaphore permits;
+    // key到等待执行的任务，队列为空时移除
+    private final HashMap<Object, SerialQueue> queues = new HashMap<>();
+
+    OrderedDispatcher(Executor executor, int maxPending) {
+        this.executor = executor;
+        this.permits = new Semaphore(maxPending);
+    }
+
+    /**
+     * 提交任务，等待执行的任务达到上限时阻塞
+     * @param key 为null时不保证顺序
+     */
+    void dispatch(Object key, final Runnable task) {
+        permits.acquireUninterruptibly();
+        Runnable wrapped = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    LogUtils.e("方法:dispatch,异常:" + e.getMessage());
+                    IMReport.getInstance().report("方法:dispatch,异常:" + e.getMessage());
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+        if (key == null) {
+            execute(wrapped);
+            return;
+        }
+        SerialQueue queue;
+        synchronized (queues) {
+            queue = queues.get(key);
+            if (queue != null) {
+                queue.tasks.add(wrapped);
+                return;
+            }
+            queue = new SerialQueue(key);
+            queue.tasks.add(wrapped);
+            queues.put(key, queue);
+        }
+        execute(queue);
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // 线程池已关闭或已满时在当前线程执行，不丢弃回包
+            LogUtils.e("方法:OrderedDispatcher.execute,异常:" + e.getMessage());
+            task.run();
+        }
+    }
+
+    /**
+     * 一个key的任务队列，同一时间最多在一个线程中执行
+     */
+    private final class SerialQueue implements Runnable {
+        final Object key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        SerialQueue(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_RUN_PER_KEY; i++) {
+                Runnable task;
+                synchronized (queues) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        queues.remove(key);
+                        return;
+                    }
+                }
+                task.run();
+            }
+            execute(this);
+        }
+    }
+}
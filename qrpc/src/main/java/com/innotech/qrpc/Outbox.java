@@ -0,0 +1,234 @@
+package com.innotech.qrpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 持久化的待发送消息
+ * 消息写入内存映射的追加日志，收到回包后追加确认记录；空间不足时只保留未确认的消息重写日志
+ * 不逐条fsync，进程被杀后数据仍在系统页缓存中，重启后可以恢复
+ *
+ * 记录格式：4字节记录长度(不含自身)、4字节CRC32、1字节类型、内容
+ * 消息记录的内容为完整的包，确认记录的内容为8字节requestID；最后一条记录后写4字节0作为结束标记
+ */
+final class Outbox {
+    static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final String FILE_NAME = "qrpc-outbox.log";
+    private static final String TEMP_FILE_NAME = "qrpc-outbox.tmp";
+    private static final byte TYPE_FRAME = 1;
+    private static final byte TYPE_ACK = 2;
+    // 记录长度、CRC32、类型
+    private static final int RECORD_HEADER = 4 + 4 + 1;
+    private static final int TERMINATOR = 4;
+
+    private final File dir;
+    private final int segmentSize;
+    private MappedByteBuffer segment;
+    // 未确认的消息，requestID到记录位置，按写入顺序排列
+    private final LinkedHashMap<Long, Integer> pending = new LinkedHashMap<>();
+
+    Outbox(File dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("mkdirs failed:" + dir);
+        }
+        segment = map(new File(dir, FILE_NAME));
+        recover();
+    }
+
+    /**
+     * 追加一条消息
+     * @param frame 完整的包，position到limit为内容，不改变position
+     * @return 空间不足时返回false
+     */
+    synchronized boolean append(long requestId, ByteBuffer frame) {
+        int length = frame.remaining();
+        // 过大的消息不保存，避免一条消息占满日志
+        if (RECORD_HEADER + length > segmentSize / 2 || !ensureSpace(RECORD_HEADER + length)) {
+            return false;
+        }
+        int position = segment.position();
+        writeRecord(TYPE_FRAME, frame.duplicate());
+        pending.put(requestId, position);
+        return true;
+    }
+
+    /**
+     * 收到回包，确认消息
+     */
+    synchronized void ack(long requestId) {
+        if (pending.remove(requestId) == null) {
+            return;
+        }
+        if (pending.isEmpty()) {
+            // 全部已确认，从头开始写
+            segment.position(0);
+            segment.putInt(0, 0);
+            return;
+        }
+        if (!ensureSpace(RECORD_HEADER + 8)) {
+            return;
+        }
+        ByteBuffer id = ByteBuffer.allocate(8);
+        id.putLong(0, requestId);
+        writeRecord(TYPE_ACK, id);
+    }
+
+    /**
+     * 按写入顺序复制全部未确认的包
+     */
+    synchronized List<ByteBuffer> pendingFrames() {
+        List<ByteBuffer> frames = new ArrayList<>(pending.size());
+        for (Integer position : pending.values()) {
+            frames.add(copyFrame(segment, position));
+        }
+        return frames;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    private static ByteBuffer copyFrame(MappedByteBuffer log, int position) {
+        int length = log.getInt(position) - 4 - 1;
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        ByteBuffer src = log.duplicate();
+        src.limit(position + RECORD_HEADER + length).position(position + RECORD_HEADER);
+        frame.put(src).flip();
+        return frame;
+    }
+
+    private void writeRecord(byte type, ByteBuffer content) {
+        int position = segment.position();
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        ByteBuffer check = content.duplicate();
+        if (check.hasArray()) {
+            crc.update(check.array(), check.arrayOffset() + check.position(), check.remaining());
+        } else {
+            byte[] bytes = new byte[check.remaining()];
+            check.get(bytes);
+            crc.update(bytes);
+        }
+        // 先写内容和结束标记，最后写长度，进程中途被杀时这条记录不完整，恢复时会被忽略
+        segment.position(position + 4);
+        segment.putInt((int) crc.getValue());
+        segment.put(type);
+        segment.put(content);
+        int end = segment.position();
+        if (end + TERMINATOR <= segment.capacity()) {
+            segment.putInt(end, 0);
+        }
+        segment.putInt(position, end - position - 4);
+        segment.position(end);
+    }
+
+    /**
+     * 空间不足时重写日志，只保留未确认的消息
+     */
+    private boolean ensureSpace(int recordLength) {
+        if (segment.position() + recordLength + TERMINATOR <= segment.capacity()) {
+            return true;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            LogUtils.e("方法:Outbox.compact,异常:" + e.getMessage());
+            IMReport.getInstance().report("方法:Outbox.compact,异常:" + e.getMessage());
+            return false;
+        }
+        return segment.position() + recordLength + TERMINATOR <= segment.capacity();
+    }
+
+    /**
+     * 未确认的消息写入临时文件，再替换原文件
+     */
+    private void compact() throws IOException {
+        File temp = new File(dir, TEMP_FILE_NAME);
+        if (temp.exists() && !temp.delete()) {
+            throw new IOException("delete failed:" + temp);
+        }
+        MappedByteBuffer old = segment;
+        segment = map(temp);
+        try {
+            LinkedHashMap<Long, Integer> moved = new LinkedHashMap<>();
+            for (Map.Entry<Long, Integer> entry : pending.entrySet()) {
+                ByteBuffer frame = copyFrame(old, entry.getValue());
+                moved.put(entry.getKey(), segment.position());
+                writeRecord(TYPE_FRAME, frame);
+            }
+            segment.force();
+            if (!temp.renameTo(new File(dir, FILE_NAME))) {
+                throw new IOException("rename failed:" + temp);
+            }
+            pending.clear();
+            pending.putAll(moved);
+        } catch (IOException e) {
+            segment = old;
+            throw e;
+        }
+    }
+
+    /**
+     * 读出日志中未确认的消息，遇到结束标记或不完整的记录时停止
+     */
+    private void recover() {
+        int position = 0;
+        int capacity = segment.capacity();
+        while (position + RECORD_HEADER <= capacity) {
+            int length = segment.getInt(position);
+            if (length < 4 + 1 || position + 4 + length > capacity) {
+                break;
+            }
+            int crcValue = segment.getInt(position + 4);
+            byte type = segment.get(position + 8);
+            ByteBuffer content = segment.duplicate();
+            content.limit(position + 4 + length).position(position + RECORD_HEADER);
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            crc.update(bytes);
+            if ((int) crc.getValue() != crcValue) {
+                break;
+            }
+            if (type == TYPE_FRAME && bytes.length >= FrameDecoder.HEADER_LENGTH) {
+                long requestId = ByteBuffer.wrap(bytes).getLong(4);
+                pending.put(requestId, position);
+            } else if (type == TYPE_ACK && bytes.length == 8) {
+                pending.remove(ByteBuffer.wrap(bytes).getLong());
+            }
+            position += 4 + length;
+        }
+        segment.position(position);
+        if (pending.isEmpty()) {
+            segment.position(0);
+            segment.putInt(0, 0);
+        } else if (position + TERMINATOR <= capacity) {
+            segment.putInt(position, 0);
+        }
+        LogUtils.eDebug("outbox recovered " + pending.size() + " messages");
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // 映射在关闭文件后仍然有效
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.innotech.qrpc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从BufferPool中获取的缓冲区，带引用计数
+ * 引用计数降为0时放回池中，之后不能再访问buffer()
+ */
+public final class PooledBuffer {
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    // 所属容量等级，-1表示不缓存
+    final int sizeClass;
+    private final AtomicInteger refCnt;
+    // 调试模式下的泄漏检测
+    BufferPool.LeakTracker leakTracker;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.refCnt = new AtomicInteger(1);
+    }
+
+    void reuse() {
+        buffer.clear();
+        refCnt.set(1);
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    /**
+     * 引用计数加1
+     */
+    public PooledBuffer retain() {
+        while (true) {
+            int cnt = refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("PooledBuffer已释放");
+            }
+            if (refCnt.compareAndSet(cnt, cnt + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 引用计数减1，降为0时放回池中
+     * @return 是否已放回池中
+     */
+    public boolean release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt == 0) {
+            pool.recycle(this);
+            return true;
+        }
+        if (cnt < 0) {
+            refCnt.incrementAndGet();
+            throw new IllegalStateException("PooledBuffer重复释放");
+        }
+        return false;
+    }
+}
@@ -0,0 +1,186 @@
+package com.innotech.qrpc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 预置字典压缩
+ * 短JSON的键名大量重复但单条消息内重复很少，gzip几乎没有效果；压缩前用双方都有的字典初始化窗口，短消息也能压缩
+ * 包体格式：2字节字典版本、4字节原长度、nowrap的deflate数据，设置FLAG_DICTIONARY标志位
+ * 字典按版本注册，注册很少、查询在每次压缩解压时进行，注册时复制整张表，查询不加锁
+ */
+final class PresetDictionary {
+    // 字典版本和原长度
+    static final int PREFIX_LENGTH = 2 + 4;
+    static final int MAX_VERSION = 0xFFFF;
+
+    private static volatile Table table = new Table(new int[0], new byte[0][]);
+
+    private PresetDictionary() {
+    }
+
+    /**
+     * 注册字典，同一版本重复注册时替换
+     */
+    static synchronized void register(int version, byte[] dictionary) {
+        Table old = table;
+        int index = Arrays.binarySearch(old.versions, version);
+        if (index >= 0) {
+            byte[][] dictionaries = old.dictionaries.clone();
+            dictionaries[index] = dictionary;
+            table = new Table(old.versions, dictionaries);
+            return;
+        }
+        int insert = -index - 1;
+        int n = old.versions.length;
+        int[] versions = new int[n + 1];
+        byte[][] dictionaries = new byte[n + 1][];
+        System.arraycopy(old.versions, 0, versions, 0, insert);
+        System.arraycopy(old.dictionaries, 0, dictionaries, 0, insert);
+        versions[insert] = version;
+        dictionaries[insert] = dictionary;
+        System.arraycopy(old.versions, insert, versions, insert + 1, n - insert);
+        System.arraycopy(old.dictionaries, insert, dictionaries, insert + 1, n - insert);
+        table = new Table(versions, dictionaries);
+    }
+
+    /**
+     * 未注册的版本返回null
+     */
+    static byte[] get(int version) {
+        Table t = table;
+        int index = Arrays.binarySearch(t.versions, version);
+        return index >= 0 ? t.dictionaries[index] : null;
+    }
+
+    /**
+     * 已注册的版本，升序
+     */
+    static int[] versions() {
+        return table.versions.clone();
+    }
+
+    /**
+     * 用字典压缩包体，生成设置了FLAG_DICTIONARY的新包
+     * @param frame 未压缩的完整包，position到limit为内容
+     * @return 版本未注册或压缩后不比原包小时返回null
+     */
+    static PooledBuffer compressFrame(ByteBuffer frame, int version) {
+        byte[] dictionary = get(version);
+        if (dictionary == null) {
+            return null;
+        }
+        int start = frame.position();
+        int bodyOffset = frame.arrayOffset() + start + FrameDecoder.HEADER_LENGTH;
+        int bodyLength = frame.remaining() - FrameDecoder.HEADER_LENGTH;
+        int limit = bodyLength - 1;
+        if (limit <= PREFIX_LENGTH) {
+            return null;
+        }
+        PooledBuffer out = BufferPool.heap().allocate(FrameDecoder.HEADER_LENGTH + limit);
+        Deflater deflater = Gzip.acquireDeflater();
+        try {
+            byte[] dst = out.buffer().array();
+            int base = out.buffer().arrayOffset();
+            int pos = base + FrameDecoder.HEADER_LENGTH + PREFIX_LENGTH;
+            int end = base + FrameDecoder.HEADER_LENGTH + limit;
+            deflater.setDictionary(dictionary);
+            deflater.setInput(frame.array(), bodyOffset, bodyLength);
+            deflater.finish();
+            while (!deflater.finished() && pos < end) {
+                pos += deflater.deflate(dst, pos, end - pos);
+            }
+            if (!deflater.finished()) {
+                out.release();
+                return null;
+            }
+            ByteBuffer data = out.buffer();
+            int compressedLength = pos - base - FrameDecoder.HEADER_LENGTH;
+            data.putInt(compressedLength + FrameDecoder.LENGTH_ADJUSTMENT)
+                    .putLong(frame.getLong(start + 4))
+                    .putInt(frame.getInt(start + 12) | (FrameDecoder.FLAG_DICTIONARY << 24))
+                    .putShort((short) version)
+                    .putInt(bodyLength);
+            data.position(pos - base);
+            data.flip();
+            return out;
+        } finally {
+            Gzip.releaseDeflater(deflater);
+        }
+    }
+
+    /**
+     * 解压包体到缓冲区池中的缓冲区
+     * @param body position到limit为压缩后的包体，不改变position
+     * @return 解压后的内容，position为0
+     * @throws DataFormatException 版本未注册、格式错误或长度不匹配
+     */
+    static PooledBuffer decompress(ByteBuffer body) throws DataFormatException {
+        if (body.remaining() < PREFIX_LENGTH) {
+            throw new DataFormatException("dictionary frame truncated");
+        }
+        int start = body.position();
+        int version = body.getShort(start) & 0xFFFF;
+        int length = body.getInt(start + 2);
+        byte[] dictionary = get(version);
+        if (dictionary == null) {
+            throw new DataFormatException("unknown dictionary version " + version);
+        }
+        if (length < 0 || length > Gzip.MAX_INFLATED_LENGTH) {
+            throw new DataFormatException("dictionary frame size " + (length & 0xFFFFFFFFL));
+        }
+        PooledBuffer heapBody = null;
+        if (!body.hasArray()) {
+            heapBody = BufferPool.heap().allocate(body.remaining());
+            heapBody.buffer().put(body.duplicate()).flip();
+            body = heapBody.buffer();
+            start = 0;
+        }
+        // 多留1字节，解压出比原长度多的数据时可以发现
+        int capacity = length + 1;
+        PooledBuffer out = BufferPool.heap().allocate(capacity);
+        Inflater inflater = Gzip.inflater();
+        try {
+            byte[] dst = out.buffer().array();
+            int base = out.buffer().arrayOffset();
+            inflater.setDictionary(dictionary);
+            inflater.setInput(body.array(), body.arrayOffset() + start + PREFIX_LENGTH, body.limit() - start - PREFIX_LENGTH);
+            int written = 0;
+            while (!inflater.finished() && written < capacity) {
+                int n = inflater.inflate(dst, base + written, capacity - written);
+                written += n;
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+            }
+            if (!inflater.finished() || written != length || inflater.getRemaining() != 0) {
+                throw new DataFormatException("dictionary frame length mismatch");
+            }
+            out.buffer().position(written);
+            out.buffer().flip();
+            return out;
+        } catch (DataFormatException e) {
+            out.release();
+            throw e;
+        } finally {
+            inflater.reset();
+            if (heapBody != null) {
+                heapBody.release();
+            }
+        }
+    }
+
+    private static final class Table {
+        // 按版本升序排列
+        final int[] versions;
+        final byte[][] dictionaries;
+
+        Table(int[] versions, byte[][] dictionaries) {
+            this.versions = versions;
+            this.dictionaries = dictionaries;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.innotech.qrpc;
+
+import java.util.Random;
+
+/**
+ * 重连延迟
+ * 指数退避加去相关抖动：下次延迟在[base, 上次延迟*3]之间随机，不超过上限
+ * 服务端重启时，大量客户端的重连时间被打散，不会同时重连
+ */
+final class ReconnectBackoff {
+    private final Random random = new Random();
+    private long baseMillis;
+    private long maxMillis;
+    // 上次的延迟，0表示重新开始退避
+    private long lastMillis;
+
+    ReconnectBackoff(long baseMillis, long maxMillis) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    synchronized void setRange(long baseMillis, long maxMillis) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.lastMillis = 0;
+    }
+
+    /**
+     * 下次重连的延迟(毫秒)
+     */
+    synchronized long next() {
+        if (baseMillis <= 0) {
+            return 0;
+        }
+        long upper = Math.max(baseMillis, lastMillis) * 3;
+        long delay = baseMillis + (long) (random.nextDouble() * (upper - baseMillis));
+        lastMillis = Math.min(maxMillis, delay);
+        return lastMillis;
+    }
+
+    /**
+     * 连接恢复后重新开始退避
+     */
+    synchronized void reset() {
+        lastMillis = 0;
+    }
+}
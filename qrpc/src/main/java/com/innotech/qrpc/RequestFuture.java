@@ -0,0 +1,259 @@
+package com.innotech.qrpc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 请求的结果
+ * 收到回包、超时、连接断开时完成，同时回调发送时传入的TCallback
+ * json请求有回调时收到回包立即解码，没有回调时和二进制请求一样把回包复制为byte[]，调用get时才按UTF-8解码
+ * 对象请求的回包由注册的Codec解码，通过getValue获取
+ * 回调在完成它的线程中执行：回包为读线程或setDispatchExecutor设置的线程池，超时为超时线程，发送失败或断开为调用方线程
+ */
+public class RequestFuture implements Future<String> {
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SUCCESS = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    // 回包的形式
+    private static final int MODE_JSON = 0;
+    private static final int MODE_BINARY = 1;
+    private static final int MODE_OBJECT = 2;
+
+    private final WriteData request;
+    // 按mode回调String、byte[]或解码后的对象
+    @SuppressWarnings("rawtypes")
+    private final TCallback callback;
+    private final int mode;
+    private int state;
+    private String response;
+    private byte[] body;
+    private Object value;
+    private String failure;
+    // 超时任务，完成时取消
+    private HashedTimingWheel.Timeout timeout;
+
+    RequestFuture(WriteData request, TCallback<String> callback) {
+        this(request, callback, MODE_JSON);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private RequestFuture(WriteData request, TCallback callback, int mode) {
+        this.request = request;
+        this.callback = callback;
+        this.mode = mode;
+    }
+
+    /**
+     * 二进制请求的结果，回包复制为byte[]回调
+     */
+    static RequestFuture ofBinary(WriteData request, TCallback<byte[]> callback) {
+        return new RequestFuture(request, callback, MODE_BINARY);
+    }
+
+    /**
+     * 对象请求的结果，回包由注册的Codec解码后回调
+     */
+    static RequestFuture ofObject(WriteData request, TCallback<?> callback) {
+        return new RequestFuture(request, callback, MODE_OBJECT);
+    }
+
+    public WriteData getRequest() {
+        return request;
+    }
+
+    synchronized void setTimeout(HashedTimingWheel.Timeout timeout) {
+        if (state == STATE_PENDING) {
+            this.timeout = timeout;
+        } else {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * 收到回包，json请求有回调时按UTF-8解码，否则和二进制请求一样复制包体，对象请求用Codec解码
+     * @param response 已解压的回包
+     * @return 已完成过或解码失败时返回false
+     */
+    @SuppressWarnings("unchecked")
+    boolean complete(Response response) {
+        if (isDone()) {
+            return false;
+        }
+        String json = null;
+        byte[] bytes = null;
+        Object result;
+        if (mode == MODE_JSON && callback != null) {
+            json = response.getJson();
+            result = json;
+        } else if (mode == MODE_JSON) {
+            // 没有回调，留到get时再解码，回包缓冲区可以立即回收
+            bytes = copyBody(response);
+            result = null;
+        } else if (mode == MODE_BINARY) {
+            bytes = copyBody(response);
+            result = bytes;
+        } else {
+            try {
+                result = response.getValue();
+            } catch (IllegalStateException e) {
+                return fail("回包解码失败:" + e.getMessage());
+            }
+        }
+        if (!setState(STATE_SUCCESS, json, bytes, result, null)) {
+            return false;
+        }
+        if (callback != null) {
+            callback.onSuccess(result);
+        }
+        return true;
+    }
+
+    private static byte[] copyBody(Response response) {
+        ByteBuffer data = response.getBody();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 发送失败、超时或连接断开
+     * @return 已完成过时返回false
+     */
+    boolean fail(String msg) {
+        if (!setState(STATE_FAILED, null, null, null, msg)) {
+            return false;
+        }
+        notifyFailure(msg);
+        return true;
+    }
+
+    private void notifyFailure(String msg) {
+        if (callback != null) {
+            callback.onFailure(msg);
+        }
+    }
+
+    private boolean setState(int newState, String response, byte[] body, Object value, String failure) {
+        HashedTimingWheel.Timeout t;
+        synchronized (this) {
+            if (state != STATE_PENDING) {
+                return false;
+            }
+            this.state = newState;
+            this.response = response;
+            this.body = body;
+            this.value = value;
+            this.failure = failure;
+            t = timeout;
+            timeout = null;
+            notifyAll();
+        }
+        if (t != null) {
+            t.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * 取消请求，之后收到的回包不再回调callback
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!setState(STATE_CANCELLED, null, null, null, "请求已取消")) {
+            return false;
+        }
+        ChatManager.getInstance().removeRequest(request);
+        notifyFailure("请求已取消");
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != STATE_PENDING;
+    }
+
+    @Override
+    public synchronized String get() throws InterruptedException, ExecutionException {
+        while (state == STATE_PENDING) {
+            wait();
+        }
+        return report();
+    }
+
+    @Override
+    public synchronized String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state == STATE_PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return report();
+    }
+
+    /**
+     * 等待回包，返回未解码的包体；json请求返回UTF-8编码的内容，对象请求返回null
+     */
+    public synchronized byte[] getBody() throws InterruptedException, ExecutionException {
+        while (state == STATE_PENDING) {
+            wait();
+        }
+        checkFailure();
+        if (body == null && response != null) {
+            body = response.getBytes(Utf8.UTF_8);
+        }
+        return body;
+    }
+
+    /**
+     * 等待回包，返回对象请求解码后的结果；json请求返回String，二进制请求返回byte[]
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T getValue() throws InterruptedException, ExecutionException {
+        while (state == STATE_PENDING) {
+            wait();
+        }
+        checkFailure();
+        if (mode == MODE_JSON) {
+            return (T) decodeResponse();
+        }
+        return (T) value;
+    }
+
+    /**
+     * 对象请求返回null
+     */
+    private String report() throws ExecutionException {
+        checkFailure();
+        return decodeResponse();
+    }
+
+    private String decodeResponse() {
+        if (response == null && body != null) {
+            response = Utf8.decode(ByteBuffer.wrap(body));
+        }
+        return response;
+    }
+
+    private void checkFailure() throws ExecutionException {
+        if (state == STATE_CANCELLED) {
+            throw new CancellationException(failure);
+        }
+        if (state == STATE_FAILED) {
+            throw new ExecutionException(new Exception(failure));
+        }
+    }
+}
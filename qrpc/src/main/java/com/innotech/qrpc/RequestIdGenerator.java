@@ -0,0 +1,19 @@
+package com.innotech.qrpc;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * requestID生成器
+ * 进程启动时取一个随机奇数作为起点，之后每次加2，保证最低位为1且在2^63次内不重复
+ */
+final class RequestIdGenerator {
+    private static final AtomicLong SEQUENCE = new AtomicLong(new SecureRandom().nextLong() | 1);
+
+    private RequestIdGenerator() {
+    }
+
+    static long next() {
+        return SEQUENCE.getAndAdd(2);
+    }
+}
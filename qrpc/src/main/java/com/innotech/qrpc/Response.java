@@ -0,0 +1,173 @@
+package com.innotech.qrpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+/**
+ * 服务端的回包或推送
+ * 包体在第一次调用getJson时才按UTF-8解码，只关心部分指令的处理器不需要为其他指令解码
+ * gzip、预置字典压缩的包体在交给处理器之前解压，损坏的包不会交给处理器
+ * 注册了Codec的指令可以用getValue直接从包体解码，包头的FLAG_BINARY决定使用JSON还是二进制格式的解码器
+ */
+public final class Response {
+    private final long requestId;
+    private final int flags;
+    private final int command;
+    private final WriteData request;
+    private ByteBuffer body;
+    // 复制出的包体，处理完后放回缓冲区池
+    private PooledBuffer owner;
+    private boolean inflated;
+    private String json;
+    private Object value;
+    private boolean decoded;
+
+    Response(long requestId, int flags, int command, WriteData request, ByteBuffer body) {
+        this.requestId = requestId;
+        this.flags = flags;
+        this.command = command;
+        this.request = request;
+        this.body = body;
+    }
+
+    /**
+     * 复制包体，在其他线程中处理
+     */
+    static Response copyOf(long requestId, int flags, int command, WriteData request, ByteBuffer body) {
+        PooledBuffer copy = BufferPool.heap().allocate(body.remaining());
+        copy.buffer().put(body).flip();
+        Response response = new Response(requestId, flags, command, request, copy.buffer());
+        response.owner = copy;
+        return response;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * 包头中的标志位
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getCommand() {
+        return command;
+    }
+
+    /**
+     * 对应的请求，服务端推送或请求已超时时为null
+     */
+    public WriteData getRequest() {
+        return request;
+    }
+
+    /**
+     * 未解码的包体，压缩的包体为解压后的内容；只在回调内有效
+     */
+    public ByteBuffer getBody() {
+        checkValid();
+        return body.duplicate();
+    }
+
+    /**
+     * 解码后的内容，结果会被缓存；包体为空时返回""
+     */
+    public String getJson() {
+        if (json == null) {
+            checkValid();
+            if (!inflate()) {
+                throw new IllegalStateException("包体解压失败");
+            }
+            json = Utf8.decode(body);
+            LogUtils.eLongDebug("readData json:" + json);
+        }
+        return json;
+    }
+
+    /**
+     * 用registerCodec注册的解码器从包体解码，结果会被缓存
+     * @throws IllegalStateException 未注册对应格式的解码器或包体格式错误
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getValue() {
+        if (!decoded) {
+            checkValid();
+            if (!inflate()) {
+                throw new IllegalStateException("包体解压失败");
+            }
+            CommandCodec codecs = ChatManager.getInstance().getCommandCodec(command);
+            Codec<?> codec = codecs != null ? codecs.decoder(flags) : null;
+            if (codec == null) {
+                throw new IllegalStateException("未注册解码器，cmd:" + command + "，flags:" + flags);
+            }
+            try {
+                value = codec.decode(body.duplicate());
+            } catch (IOException | RuntimeException e) {
+                LogUtils.e("方法:getValue,cmd:" + command + ",异常:" + e.getMessage());
+                IMReport.getInstance().report("方法:getValue,cmd:" + command + ",异常:" + e.getMessage());
+                throw new IllegalStateException("包体解码失败:" + e.getMessage());
+            }
+            decoded = true;
+        }
+        return (T) value;
+    }
+
+    /**
+     * 压缩的包体解压到缓冲区池中的缓冲区，替换原包体
+     * @return 包体损坏或字典版本未注册时返回false
+     */
+    boolean inflate() {
+        if (inflated || !isCompressed(flags) || !body.hasRemaining()) {
+            return true;
+        }
+        PooledBuffer out;
+        try {
+            out = inflate(flags, body);
+        } catch (DataFormatException e) {
+            LogUtils.e("方法:inflate,cmd:" + command + ",异常:" + e.getMessage());
+            IMReport.getInstance().report("方法:inflate,cmd:" + command + ",异常:" + e.getMessage());
+            return false;
+        }
+        if (owner != null) {
+            owner.release();
+        }
+        owner = out;
+        body = out.buffer();
+        inflated = true;
+        return true;
+    }
+
+    /**
+     * 回调结束后包体不再有效，已解码的内容仍然可以访问
+     */
+    void release() {
+        body = null;
+        if (owner != null) {
+            owner.release();
+            owner = null;
+        }
+    }
+
+    static boolean isCompressed(int flags) {
+        return (flags & (FrameDecoder.FLAG_GZIP | FrameDecoder.FLAG_DICTIONARY)) != 0;
+    }
+
+    /**
+     * 按标志位解压包体
+     */
+    static PooledBuffer inflate(int flags, ByteBuffer body) throws DataFormatException {
+        if ((flags & FrameDecoder.FLAG_DICTIONARY) != 0) {
+            return PresetDictionary.decompress(body);
+        }
+        return Gzip.decompress(body);
+    }
+
+    private void checkValid() {
+        if (body == null) {
+            throw new IllegalStateException("包体只在回调内有效");
+        }
+    }
+}
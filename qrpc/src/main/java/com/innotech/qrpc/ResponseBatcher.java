@@ -0,0 +1,174 @@
+package com.innotech.qrpc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并回包
+ * 时间窗口为0时一次读取解析出的回包合并为一批；否则从一批的第一个回包开始，时间窗口内收到的合并为一批
+ * 一批达到MAX_BATCH_SIZE时立即交付
+ * 锁内只把完成的一批放入交付队列，锁外交付；同一时间只有一个线程从队列中按顺序交付，保证批次的顺序
+ */
+final class ResponseBatcher {
+    static final int MAX_BATCH_SIZE = 512;
+    // 交付队列的上限，达到时读线程等待，不再读取新的回包
+    static final int MAX_READY_BATCHES = 16;
+
+    interface Sink {
+        /**
+         * 交付一批回包，回包的包体由Sink释放
+         */
+        void deliver(List<Response> batch);
+    }
+
+    private final Sink sink;
+    private final long windowNanos;
+    private final ScheduledExecutorService timer;
+    private List<Response> batch = new ArrayList<>();
+    // 当前一批第一个回包的时间
+    private long firstNanos;
+    // 定时交付任务是否已提交
+    private boolean flushScheduled;
+    // 等待交付的批次和是否有线程正在交付
+    private final ArrayDeque<List<Response>> ready = new ArrayDeque<>();
+    private boolean delivering;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushExpired();
+        }
+    };
+
+    ResponseBatcher(Sink sink, long windowNanos, ScheduledExecutorService timer) {
+        this.sink = sink;
+        this.windowNanos = windowNanos;
+        this.timer = timer;
+    }
+
+    /**
+     * 在读线程中调用
+     * @param response 包体已复制的回包
+     */
+    void add(Response response) {
+        synchronized (this) {
+            awaitReadySpace();
+            if (batch.isEmpty()) {
+                firstNanos = System.nanoTime();
+                if (windowNanos > 0 && !flushScheduled) {
+                    flushScheduled = true;
+                    timer.schedule(flushTask, windowNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            batch.add(response);
+            if (batch.size() < MAX_BATCH_SIZE) {
+                return;
+            }
+            take();
+        }
+        deliverReady();
+    }
+
+    /**
+     * 一次读取解析完，没有时间窗口或时间窗口已过时交付，在读线程中调用
+     */
+    void readComplete() {
+        synchronized (this) {
+            if (batch.isEmpty() || (windowNanos > 0 && System.nanoTime() - firstNanos < windowNanos)) {
+                return;
+            }
+            awaitReadySpace();
+            take();
+        }
+        deliverReady();
+    }
+
+    /**
+     * 立即交付当前一批
+     */
+    void flush() {
+        synchronized (this) {
+            if (!batch.isEmpty()) {
+                take();
+            }
+        }
+        deliverReady();
+    }
+
+    private void flushExpired() {
+        synchronized (this) {
+            flushScheduled = false;
+            if (batch.isEmpty()) {
+                return;
+            }
+            long remaining = windowNanos - (System.nanoTime() - firstNanos);
+            if (remaining > 0) {
+                // 之前的一批已交付，新的一批还没到时间
+                flushScheduled = true;
+                timer.schedule(flushTask, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+            take();
+        }
+        deliverReady();
+    }
+
+    /**
+     * 当前一批放入交付队列，持有锁时调用
+     */
+    private void take() {
+        ready.add(batch);
+        batch = new ArrayList<>();
+    }
+
+    /**
+     * 交付队列已满且有其他线程正在交付时等待，持有锁时调用
+     * 只在读线程中等待，定时器线程不等待
+     */
+    private void awaitReadySpace() {
+        boolean interrupted = false;
+        while (ready.size() >= MAX_READY_BATCHES && delivering) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 按顺序交付队列中的批次，已有线程在交付时直接返回，由该线程继续交付
+     */
+    private void deliverReady() {
+        synchronized (this) {
+            if (delivering) {
+                return;
+            }
+            delivering = true;
+        }
+        while (true) {
+            List<Response> next;
+            synchronized (this) {
+                next = ready.poll();
+                if (next == null) {
+                    delivering = false;
+                    notifyAll();
+                    return;
+                }
+                notifyAll();
+            }
+            try {
+                sink.deliver(next);
+            } catch (Throwable e) {
+                LogUtils.e("方法:ResponseBatcher.deliverReady,异常:" + e.getMessage());
+                IMReport.getInstance().report("方法:ResponseBatcher.deliverReady,异常:" + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package com.innotech.qrpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 长连接传输层
+ * 负责建立连接、按QRPC协议收发数据，收到的包和异常通过Listener交给ChatManager处理
+ */
+abstract class Transport {
+
+    interface Listener {
+        /**
+         * 收到一个完整的包
+         * @param transport 收到包的连接
+         * @param flags 标志位
+         * @param command 3字节命令
+         * @param body 包体，只在回调内有效
+         */
+        void onFrame(Transport transport, long requestId, int flags, int command, ByteBuffer body);
+
+        /**
+         * 一次读取的数据全部解析完，之前的onFrame属于同一次读取
+         */
+        void onReadComplete(Transport transport);
+
+        /**
+         * 一条消息写入成功
+         */
+        void onWritten(Transport transport, WriteData data);
+
+        /**
+         * 写队列超过容量，按OVERFLOW_DROP_OLDEST丢弃了最早的消息
+         */
+        void onDropped(Transport transport, WriteData data);
+
+        /**
+         * 写队列字节数超过高水位变为不可写，降到低水位以下恢复可写
+         */
+        void onWritabilityChanged(Transport transport, boolean writable);
+
+        /**
+         * 连接异常，需要重置连接
+         */
+        void onError(Transport transport, String reason);
+    }
+
+    // 读缓冲区大小
+    static final int READ_BUFFER_SIZE = 8 * 1024;
+    // 合并写默认参数
+    static final int DEFAULT_MAX_WRITE_BYTES = 64 * 1024;
+    static final int DEFAULT_MAX_WRITE_COUNT = 64;
+    // 每个优先级写队列的默认容量
+    static final int DEFAULT_WRITE_QUEUE_CAPACITY = 4096;
+    // 优先级队列数，与ChatManager.PRIORITY_*对应
+    static final int LANE_COUNT = 3;
+    // 加权调度默认权重，依次为control、interactive、bulk
+    static final int[] DEFAULT_LANE_WEIGHTS = {8, 4, 1};
+    // 严格优先级调度时，低优先级队列连续被跳过的最大次数
+    private static final int STARVATION_LIMIT = 32;
+    // 写队列默认字节数容量、高低水位
+    static final int DEFAULT_WRITE_BUFFER_CAPACITY = 1024 * 1024;
+    static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+    static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    // OVERFLOW_BLOCK默认最长等待时间
+    static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 5 * 1000;
+    // 写队列满时每次等待的时间
+    private static final long QUEUE_FULL_PARK_NANOS = 100 * 1000;
+
+    protected final Listener listener;
+    /**
+     * 要写给服务端的信息先按优先级放入Queue中，再从Queue中取出进行处理
+     * 防止多线程同时写产生批量写失败
+     * 只允许一个消费者，写线程和close之间用queueLock加锁互斥，发送方不加锁
+     */
+    private final MpscRingBuffer<WriteData>[] lanes;
+    private final Object queueLock = new Object();
+    // 等待消息的写线程
+    private volatile Thread writeWaiter;
+    // 调度方式和权重，以下调度状态只在持有queueLock时访问
+    private int scheduling = ChatManager.SCHEDULE_WEIGHTED;
+    private int[] laneWeights = DEFAULT_LANE_WEIGHTS;
+    private final int[] laneCredits = new int[LANE_COUNT];
+    private final int[] laneSkipped = new int[LANE_COUNT];
+    // 一次合并写入的最大字节数、最大消息数
+    protected int maxWriteBytes = DEFAULT_MAX_WRITE_BYTES;
+    protected int maxWriteCount = DEFAULT_MAX_WRITE_COUNT;
+    // 合并写时等待更多消息的时间
+    protected long lingerNanos;
+    // 写队列字节数容量、高低水位
+    private int writeBufferCapacity = DEFAULT_WRITE_BUFFER_CAPACITY;
+    private int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+    private int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+    // 超过容量时的处理方式
+    private int overflowPolicy = ChatManager.OVERFLOW_FAIL_FAST;
+    private long blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BLOCK_TIMEOUT_MILLIS);
+    // 写队列中的字节数
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    private volatile boolean closed;
+    // 连接的地址
+    private IpAddress endpoint;
+    // 通过该连接发送、等待回包的请求数
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // 最后一次读到数据、写出数据的时间，用于心跳检查
+    private volatile long lastReadNanos;
+    private volatile long lastWriteNanos;
+
+    Transport(Listener listener) {
+        this.listener = listener;
+        @SuppressWarnings("unchecked")
+        MpscRingBuffer<WriteData>[] lanes = (MpscRingBuffer<WriteData>[]) new MpscRingBuffer<?>[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            lanes[i] = new MpscRingBuffer<>(DEFAULT_WRITE_QUEUE_CAPACITY);
+        }
+        this.lanes = lanes;
+        lastReadNanos = lastWriteNanos = System.nanoTime();
+    }
+
+    /**
+     * 设置合并写参数，需要在start之前调用
+     */
+    void setWriteCoalescing(int maxBytes, int maxCount, long lingerNanos) {
+        this.maxWriteBytes = maxBytes;
+        this.maxWriteCount = maxCount;
+        this.lingerNanos = lingerNanos;
+    }
+
+    /**
+     * 设置写队列的字节数容量和高低水位，需要在start之前调用
+     */
+    void setWriteBufferLimits(int lowWaterMark, int highWaterMark, int capacity) {
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.writeBufferCapacity = capacity;
+    }
+
+    /**
+     * 设置写队列超过容量时的处理方式，需要在start之前调用
+     * @param blockTimeoutNanos OVERFLOW_BLOCK时的最长等待时间
+     */
+    void setOverflowPolicy(int policy, long blockTimeoutNanos) {
+        this.overflowPolicy = policy;
+        this.blockTimeoutNanos = blockTimeoutNanos;
+    }
+
+    /**
+     * 设置优先级队列的调度方式，需要在start之前调用
+     * @param weights SCHEDULE_WEIGHTED时每轮从各队列取的消息数
+     */
+    void setLaneScheduling(int scheduling, int[] weights) {
+        this.scheduling = scheduling;
+        this.laneWeights = weights.clone();
+    }
+
+    /**
+     * 使用已建立的连接，成功返回后才可以调用start
+     * @param channel 已连接、非阻塞模式、未注册到Selector的channel
+     */
+    abstract void connect(SocketChannel channel) throws IOException;
+
+    /**
+     * 开始收发数据
+     */
+    abstract void start();
+
+    /**
+     * 是否连接中
+     */
+    abstract boolean isConnected();
+
+    /**
+     * 关闭连接，释放读写资源
+     */
+    protected abstract void doClose();
+
+    /**
+     * 取出已从写队列取出、但还未写完的消息，在close中调用
+     */
+    void drainUnsent(List<WriteData> pending) {
+    }
+
+    /**
+     * 放入写队列，超过容量时按overflowPolicy处理
+     * @return 连接已关闭、OVERFLOW_FAIL_FAST时超过容量、OVERFLOW_BLOCK时等待超时返回false
+     */
+    boolean write(WriteData data) {
+        int size = data.getFrame().remaining();
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        while (!closed) {
+            if (reserve(size)) {
+                if (lanes[data.getPriority()].offer(data)) {
+                    // close在检查closed之后、放入之前清空了队列时，自己取回
+                    if (closed) {
+                        return !reclaimAfterClose(data);
+                    }
+                    Thread waiter = writeWaiter;
+                    if (waiter != null) {
+                        LockSupport.unpark(waiter);
+                    }
+                    updateWritability();
+                    return true;
+                }
+                // 槽位已满
+                pendingBytes.addAndGet(-size);
+            }
+            if (overflowPolicy == ChatManager.OVERFLOW_FAIL_FAST) {
+                return false;
+            }
+            if (overflowPolicy == ChatManager.OVERFLOW_DROP_OLDEST) {
+                if (dropOldest()) {
+                    continue;
+                }
+            } else if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(QUEUE_FULL_PARK_NANOS);
+        }
+        return false;
+    }
+
+    /**
+     * 关闭后放入的消息不会再被写出，从队列中取出
+     * 其他发送线程同时放入的消息按丢弃回调，已被close取走的由close的调用方处理
+     * @return data是否由本次取出，取出时由调用方按发送失败处理
+     */
+    private boolean reclaimAfterClose(WriteData data) {
+        List<WriteData> stranded = new ArrayList<>();
+        synchronized (queueLock) {
+            for (MpscRingBuffer<WriteData> lane : lanes) {
+                WriteData queued;
+                while ((queued = lane.poll()) != null) {
+                    stranded.add(queued);
+                }
+            }
+            pendingBytes.set(0);
+        }
+        boolean reclaimed = false;
+        for (WriteData queued : stranded) {
+            queued.setWriteState(WriteData.WRITE_FAILED);
+            if (queued == data) {
+                reclaimed = true;
+            } else {
+                queued.releaseFrame();
+                listener.onDropped(this, queued);
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * 占用写队列容量，队列为空时单条超过容量的消息也可以放入
+     */
+    private boolean reserve(int size) {
+        while (true) {
+            long bytes = pendingBytes.get();
+            if (bytes > 0 && bytes + size > writeBufferCapacity) {
+                return false;
+            }
+            if (pendingBytes.compareAndSet(bytes, bytes + size)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 丢弃优先级最低的非空队列中最早的消息
+     * @return 队列为空返回false
+     */
+    private boolean dropOldest() {
+        WriteData oldest = null;
+        synchronized (queueLock) {
+            for (int i = LANE_COUNT - 1; i >= 0 && oldest == null; i--) {
+                oldest = lanes[i].poll();
+            }
+            if (oldest == null) {
+                return false;
+            }
+            pendingBytes.addAndGet(-oldest.getFrame().remaining());
+        }
+        updateWritability();
+        oldest.setWriteState(WriteData.WRITE_FAILED);
+        oldest.releaseFrame();
+        listener.onDropped(this, oldest);
+        return true;
+    }
+
+    /**
+     * 根据写队列字节数更新可写状态，状态变化时回调listener
+     */
+    private void updateWritability() {
+        while (true) {
+            long bytes = pendingBytes.get();
+            boolean current = writable.get();
+            if (current ? bytes <= highWaterMark : bytes >= lowWaterMark) {
+                return;
+            }
+            // 回调后重新检查，防止并发读写时错过反向的变化
+            if (writable.compareAndSet(current, !current)) {
+                listener.onWritabilityChanged(this, !current);
+            }
+        }
+    }
+
+    /**
+     * 写队列字节数是否低于高水位
+     */
+    boolean isWritable() {
+        return writable.get();
+    }
+
+    /**
+     * 按调度方式选出优先级队列，取出队首的消息
+     * @param maxBytes 队首消息的包超过该长度时不取出
+     * @return 队列为空或超过长度时返回null
+     */
+    protected WriteData pollWrite(int maxBytes) {
+        WriteData data;
+        synchronized (queueLock) {
+            int lane = selectLane();
+            if (lane < 0) {
+                return null;
+            }
+            data = lanes[lane].peek();
+            int size = data.getFrame().remaining();
+            if (size > maxBytes) {
+                return null;
+            }
+            lanes[lane].poll();
+            onLaneSelected(lane);
+            pendingBytes.addAndGet(-size);
+        }
+        updateWritability();
+        return data;
+    }
+
+    /**
+     * 选出下一条消息所在的队列，不改变调度状态
+     * @return 全部为空返回-1
+     */
+    private int selectLane() {
+        int first = -1;
+        for (int i = 0; i < LANE_COUNT; i++) {
+            if (lanes[i].isEmpty()) {
+                continue;
+            }
+            if (first < 0) {
+                first = i;
+                if (scheduling == ChatManager.SCHEDULE_WEIGHTED && laneCredits[i] > 0) {
+                    return i;
+                }
+            } else if (scheduling == ChatManager.SCHEDULE_STRICT) {
+                // 低优先级队列被跳过太多次时先处理一次，防止饿死
+                if (laneSkipped[i] >= STARVATION_LIMIT) {
+                    return i;
+                }
+            } else if (laneCredits[i] > 0) {
+                return i;
+            }
+        }
+        // 严格优先级取最高的非空队列；加权调度时非空队列的额度都已用完，取最高的非空队列并开始新的一轮
+        return first;
+    }
+
+    /**
+     * 从lane取出消息后更新调度状态
+     */
+    private void onLaneSelected(int lane) {
+        if (scheduling == ChatManager.SCHEDULE_STRICT) {
+            laneSkipped[lane] = 0;
+            for (int i = lane + 1; i < LANE_COUNT; i++) {
+                if (!lanes[i].isEmpty()) {
+                    laneSkipped[i]++;
+                }
+            }
+            return;
+        }
+        if (laneCredits[lane] <= 0) {
+            System.arraycopy(laneWeights, 0, laneCredits, 0, LANE_COUNT);
+        }
+        laneCredits[lane]--;
+    }
+
+    /**
+     * 写队列是否有消息
+     */
+    protected boolean hasPendingWrite() {
+        for (MpscRingBuffer<WriteData> lane : lanes) {
+            if (!lane.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 写队列中的消息数
+     */
+    protected int pendingWriteCount() {
+        int count = 0;
+        for (MpscRingBuffer<WriteData> lane : lanes) {
+            count += lane.size();
+        }
+        return count;
+    }
+
+    /**
+     * 等待写队列非空，只有写线程调用
+     * @param timeoutNanos 最长等待时间，小于等于0表示一直等待
+     */
+    protected void awaitWrite(long timeoutNanos) throws InterruptedException {
+        writeWaiter = Thread.currentThread();
+        try {
+            // 设置writeWaiter后再检查一次，避免错过发送方的unpark
+            if (!hasPendingWrite()) {
+                if (timeoutNanos > 0) {
+                    LockSupport.parkNanos(this, timeoutNanos);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } finally {
+            writeWaiter = null;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * 关闭连接
+     * @return 写队列中还未发送的消息
+     */
+    List<WriteData> close() {
+        closed = true;
+        doClose();
+        List<WriteData> pending = new ArrayList<>();
+        drainUnsent(pending);
+        synchronized (queueLock) {
+            for (MpscRingBuffer<WriteData> lane : lanes) {
+                WriteData data;
+                while ((data = lane.poll()) != null) {
+                    pending.add(data);
+                }
+            }
+            pendingBytes.set(0);
+        }
+        for (WriteData data : pending) {
+            data.setWriteState(WriteData.WRITE_FAILED);
+            data.releaseFrame();
+        }
+        return pending;
+    }
+
+    void setEndpoint(IpAddress endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    IpAddress getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * 请求记录后调用
+     */
+    void incrementOutstanding() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * 请求收到回包、超时或取消后调用
+     * @return 剩余等待回包的请求数
+     */
+    int decrementOutstanding() {
+        return outstanding.decrementAndGet();
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * 读到数据时调用
+     */
+    protected void markRead() {
+        lastReadNanos = System.nanoTime();
+    }
+
+    /**
+     * 写出数据时调用
+     */
+    protected void markWritten() {
+        lastWriteNanos = System.nanoTime();
+    }
+
+    long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    /**
+     * 创建当前连接的包解析器，解析出的包交给listener
+     */
+    protected FrameDecoder newFrameDecoder() {
+        return new FrameDecoder(new FrameDecoder.Handler() {
+            @Override
+            public void onFrame(long requestId, int flags, int command, ByteBuffer body) {
+                listener.onFrame(Transport.this, requestId, flags, command, body);
+            }
+        });
+    }
+
+    /**
+     * 包长度是否超过闲置内存，超过时先尝试gc
+     */
+    static boolean isMemoryEnough(int len) {
+        long memory = Runtime.getRuntime().maxMemory() - (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        if (len > memory) {
+            System.gc();
+            long newMemory = Runtime.getRuntime().maxMemory() - (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+            return len <= newMemory;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,107 @@
+package com.innotech.qrpc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * UTF-8编码，直接写入目标数组，不创建中间数组
+ * 不成对的代理字符按String.getBytes的方式编码为'?'
+ */
+final class Utf8 {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Utf8() {
+    }
+
+    /**
+     * 解码position到limit的内容，不改变position
+     */
+    static String decode(ByteBuffer data) {
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + data.position(), data.remaining(), UTF_8);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * 编码后的字节数
+     */
+    static int encodedLength(CharSequence s) {
+        return encodedLength(s, 0, s.length());
+    }
+
+    /**
+     * start到end的字符编码后的字节数
+     */
+    static int encodedLength(CharSequence s, int start, int end) {
+        int bytes = end - start;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // 4字节，两个char
+                bytes += 2;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // 编码为'?'
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 编码到dst的offset处
+     * @return 写入后的位置
+     */
+    static int encode(CharSequence s, byte[] dst, int offset) {
+        return encode(s, 0, s.length(), dst, offset);
+    }
+
+    /**
+     * 编码start到end的字符到dst的offset处
+     * @return 写入后的位置
+     */
+    static int encode(CharSequence s, int start, int end, byte[] dst, int offset) {
+        int p = offset;
+        int i = start;
+        // ASCII快速路径
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            dst[p++] = (byte) c;
+            i++;
+        }
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[p++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[p++] = (byte) (0xC0 | (c >> 6));
+                dst[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst[p++] = (byte) (0xF0 | (cp >> 18));
+                dst[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                dst[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                dst[p++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                dst[p++] = '?';
+            } else {
+                dst[p++] = (byte) (0xE0 | (c >> 12));
+                dst[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dst[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return p;
+    }
+}
@@ -1,43 +1,202 @@
 package com.innotech.qrpc;
 
-import android.text.TextUtils;
-
-import java.util.Random;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
 
 /**
  * 长连接写的数据结构
  */
 public class WriteData {
-    //4字节剩余包长度
-    private byte[] len;
-    //8字节随机数
-    private byte[] requestsID;
+    /**
+     * 写的结果
+     */
+    public static final int WRITE_PENDING = 0; // 等待写入
+    public static final int WRITE_SUCCESS = 1; // 已写入socket
+    public static final int WRITE_FAILED = 2; // 写失败或未写入就断开
+
+    // 对象请求编码时初始的包缓冲区大小，不够时换更大的
+    private static final int ENCODE_CAPACITY = 256;
+
+    //8字节requestID
+    private final long requestId;
     //指令
-    private byte[] command;
-    //内容
-    private byte[] jsonb;
-    //合并上述四项
-    private byte[] data;
-    // 请求的信息
+    private final int command;
+    //4字节剩余包长度、8字节requestID、指令、内容合并后的包，写完后放回缓冲区池
+    private PooledBuffer frame;
+    // 请求的信息：json、二进制内容、编码器或对象，从发件箱恢复的请求同时有json和二进制内容
     private String json;
+    private ByteBuffer body;
+    private BodyEncoder encoder;
+    // 对象请求的编解码器和对象
+    @SuppressWarnings("rawtypes")
+    private Codec codec;
+    private Object value;
+    // 包头中压缩以外的标志位
+    private int frameFlags;
     // 请求的回调
     private TCallback callback;
+    // 请求的结果
+    private RequestFuture future;
     //写的结果
-    private LinkedBlockingQueue<Boolean> resultQueue;
+    private volatile int writeState;
+    // 写入socket的时间，用于计算往返时间
+    private volatile long writtenNanos;
+    // 发送请求的连接
+    private volatile Transport transport;
+    // 发送优先级
+    private int priority = ChatManager.PRIORITY_INTERACTIVE;
+    // 已保存到发件箱，断开或发送失败后重连时重发
+    private volatile boolean persisted;
+    // 包体已压缩，使用预置字典时为字典版本
+    private boolean compressed;
+    private int dictionaryVersion = -1;
 
     public WriteData(Integer cmd, String json) {
-        resultQueue = new LinkedBlockingQueue<>();
-        this.len = CommonUtils.big_intToByte(!TextUtils.isEmpty(json) ? json.getBytes().length + 12 : 12, 4);
-        this.requestsID = getRequestID();
-        this.command = CommonUtils.big_intToByte(cmd, 4);
-        this.jsonb = json.getBytes();
-        this.data = new byte[len.length + requestsID.length + command.length + jsonb.length];
+        this.requestId = RequestIdGenerator.next();
+        this.command = cmd;
         this.json = json;
-        System.arraycopy(len, 0, data, 0, len.length);
-        System.arraycopy(requestsID, 0, data, len.length, requestsID.length);
-        System.arraycopy(command, 0, data, len.length + requestsID.length, command.length);
-        System.arraycopy(jsonb, 0, data, len.length + requestsID.length + command.length, jsonb.length);
+        this.frame = encode();
+    }
+
+    private WriteData(int cmd, ByteBuffer body, BodyEncoder encoder) {
+        this.requestId = RequestIdGenerator.next();
+        this.command = cmd;
+        this.body = body;
+        this.encoder = encoder;
+        this.frame = encode();
+    }
+
+    /**
+     * 二进制请求，body的position到limit为内容，不改变body；内容复制到包缓冲区，会话恢复重发时再次复制
+     */
+    static WriteData ofBody(int cmd, ByteBuffer body) {
+        return new WriteData(cmd, body.asReadOnlyBuffer(), null);
+    }
+
+    /**
+     * 由编码器直接写入包缓冲区的请求，会话恢复重发时再次调用编码器
+     */
+    static WriteData ofEncoder(int cmd, BodyEncoder encoder) {
+        return new WriteData(cmd, (ByteBuffer) null, encoder);
+    }
+
+    /**
+     * 由Codec直接写入包缓冲区的对象请求，二进制格式时设置FLAG_BINARY；会话恢复重发时再次编码
+     */
+    static <T> WriteData ofObject(int cmd, Codec<T> codec, T value) {
+        return new WriteData(cmd, codec, value);
+    }
+
+    private WriteData(int cmd, Codec<?> codec, Object value) {
+        this.requestId = RequestIdGenerator.next();
+        this.command = cmd;
+        this.codec = codec;
+        this.value = value;
+        this.frameFlags = codec.isBinary() ? FrameDecoder.FLAG_BINARY : 0;
+        this.frame = encode();
+    }
+
+    /**
+     * 包头和内容直接写入同一个缓冲区，json按UTF-8编码
+     */
+    @SuppressWarnings("unchecked")
+    private PooledBuffer encode() {
+        if (codec != null) {
+            // 长度事先未知，先写包头，写完包体后回填长度
+            PooledBuffer initial = BufferPool.heap().allocate(ENCODE_CAPACITY);
+            initial.buffer().putInt(0).putLong(requestId).putInt(command | frameFlags << 24);
+            BodyWriter out = new BodyWriter(initial);
+            try {
+                codec.encode(value, out);
+            } catch (RuntimeException e) {
+                out.frame().release();
+                throw e;
+            }
+            PooledBuffer frame = out.frame();
+            ByteBuffer data = frame.buffer();
+            data.putInt(0, out.size() + FrameDecoder.LENGTH_ADJUSTMENT);
+            data.flip();
+            return frame;
+        }
+        int bodyLength;
+        if (encoder != null) {
+            bodyLength = encoder.encodedLength();
+            if (bodyLength < 0) {
+                throw new IllegalArgumentException("encodedLength:" + bodyLength);
+            }
+        } else if (body != null) {
+            bodyLength = body.remaining();
+        } else {
+            bodyLength = json != null ? Utf8.encodedLength(json) : 0;
+        }
+        PooledBuffer frame = BufferPool.heap().allocate(FrameDecoder.HEADER_LENGTH + bodyLength);
+        ByteBuffer data = frame.buffer();
+        data.putInt(bodyLength + FrameDecoder.LENGTH_ADJUSTMENT).putLong(requestId).putInt(command | frameFlags << 24);
+        if (encoder != null) {
+            // 只允许写入encodedLength字节
+            data.limit(data.position() + bodyLength);
+            try {
+                encoder.encode(data);
+            } catch (RuntimeException e) {
+                frame.release();
+                throw e;
+            }
+            data.order(ByteOrder.BIG_ENDIAN);
+            if (data.hasRemaining()) {
+                frame.release();
+                throw new IllegalStateException("编码长度不一致，cmd:" + command + "，少写" + data.remaining() + "字节");
+            }
+        } else if (body != null) {
+            data.put(body.duplicate());
+        } else if (json != null) {
+            int end = Utf8.encode(json, data.array(), data.arrayOffset() + data.position());
+            data.position(end - data.arrayOffset());
+        }
+        data.flip();
+        return frame;
+    }
+
+    /**
+     * 从发件箱中恢复的包，保持原来的requestID
+     * @param data 完整的包，复制到缓冲区池中的缓冲区
+     */
+    WriteData(ByteBuffer data) {
+        int header = data.position();
+        this.requestId = data.getLong(header + 4);
+        int flagsAndCommand = data.getInt(header + 12);
+        this.command = flagsAndCommand & 0xFFFFFF;
+        int bodyLength = data.remaining() - FrameDecoder.HEADER_LENGTH;
+        int flags = flagsAndCommand >>> 24;
+        this.compressed = Response.isCompressed(flags);
+        this.frameFlags = flags & ~(FrameDecoder.FLAG_GZIP | FrameDecoder.FLAG_DICTIONARY);
+        ByteBuffer body = data.duplicate();
+        body.position(header + FrameDecoder.HEADER_LENGTH);
+        if (compressed && (flags & FrameDecoder.FLAG_DICTIONARY) != 0 && bodyLength >= 2) {
+            this.dictionaryVersion = body.getShort(body.position()) & 0xFFFF;
+        }
+        // 不知道原来是json还是二进制，保留原内容用于重新编码，json按UTF-8解码
+        byte[] plain = new byte[0];
+        if (compressed && bodyLength > 0) {
+            try {
+                PooledBuffer inflated = Response.inflate(flags, body);
+                plain = new byte[inflated.buffer().remaining()];
+                inflated.buffer().get(plain);
+                inflated.release();
+            } catch (DataFormatException e) {
+                LogUtils.e("方法:WriteData,异常:" + e.getMessage());
+            }
+        } else if (bodyLength > 0) {
+            plain = new byte[bodyLength];
+            body.duplicate().get(plain);
+        }
+        this.body = ByteBuffer.wrap(plain).asReadOnlyBuffer();
+        if (plain.length > 0 && (frameFlags & FrameDecoder.FLAG_BINARY) == 0) {
+            this.json = Utf8.decode(ByteBuffer.wrap(plain));
+        }
+        this.frame = BufferPool.heap().allocate(data.remaining());
+        this.frame.buffer().put(data.duplicate()).flip();
+        this.persisted = true;
     }
 
     public WriteData(Integer cmd, String json, TCallback callback) {
@@ -46,39 +205,184 @@ public class WriteData {
     }
 
     /**
-     * 生成8字节随机数
-     *
-     * @return 8字节随机数
+     * 写的结果
+     * @return WRITE_PENDING、WRITE_SUCCESS或WRITE_FAILED
      */
-    private byte[] getRequestID() {
-        byte[] b = new byte[8];
-        Random random = new Random();
-        random.nextBytes(b);
-        b[7] |= 1;
-        return b;
+    public int getWriteState() {
+        return writeState;
+    }
+
+    void setWriteState(int writeState) {
+        if (writeState == WRITE_SUCCESS) {
+            writtenNanos = System.nanoTime();
+        }
+        this.writeState = writeState;
+    }
+
+    long getWrittenNanos() {
+        return writtenNanos;
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * 发送优先级
+     * @return ChatManager.PRIORITY_CONTROL、PRIORITY_INTERACTIVE或PRIORITY_BULK
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    void setPriority(int priority) {
+        this.priority = priority;
     }
 
-    public LinkedBlockingQueue<Boolean> getResultQueue() {
-        return resultQueue;
+    boolean isPersisted() {
+        return persisted;
     }
 
+    void setPersisted(boolean persisted) {
+        this.persisted = persisted;
+    }
+
+    /**
+     * 待写入的包，position到limit为未写入的部分
+     */
+    synchronized ByteBuffer getFrame() {
+        return frame != null ? frame.buffer() : null;
+    }
+
+    /**
+     * 写完或放弃发送后释放包缓冲区
+     */
+    synchronized void releaseFrame() {
+        if (frame != null) {
+            frame.release();
+            frame = null;
+        }
+    }
+
+    /**
+     * 会话恢复后重发，使用原来的requestID重新编码
+     */
+    synchronized void resetFrame() {
+        if (frame != null) {
+            frame.release();
+        }
+        // 编码器抛出异常时不保留已释放的包
+        frame = null;
+        frame = encode();
+        if (compressed) {
+            compressed = false;
+            if (dictionaryVersion < 0 || !compressWithDictionary(dictionaryVersion, 0)) {
+                compress(0);
+            }
+        }
+        writeState = WRITE_PENDING;
+    }
+
+    /**
+     * 包体不小于threshold时gzip压缩，压缩后不更小时保持原样
+     */
+    synchronized void compress(int threshold) {
+        if (frame == null || compressed || frame.buffer().remaining() - FrameDecoder.HEADER_LENGTH < threshold) {
+            return;
+        }
+        PooledBuffer gzipped = Gzip.compressFrame(frame.buffer());
+        if (gzipped != null) {
+            frame.release();
+            frame = gzipped;
+            compressed = true;
+        }
+    }
+
+    /**
+     * 包体不小于minBytes时用预置字典压缩
+     * @return 已压缩时返回true；版本未注册或压缩后不更小时返回false
+     */
+    synchronized boolean compressWithDictionary(int version, int minBytes) {
+        if (frame == null || compressed || frame.buffer().remaining() - FrameDecoder.HEADER_LENGTH < minBytes) {
+            return compressed;
+        }
+        PooledBuffer packed = PresetDictionary.compressFrame(frame.buffer(), version);
+        if (packed == null) {
+            return false;
+        }
+        frame.release();
+        frame = packed;
+        compressed = true;
+        dictionaryVersion = version;
+        return true;
+    }
+
+    /**
+     * 完整的包：4字节剩余包长、8字节requestID、标志位和指令、内容，不压缩
+     * 包缓冲区写完后放回缓冲区池，每次调用重新编码一份
+     */
     public byte[] getData() {
-        return data;
+        PooledBuffer encoded = encode();
+        ByteBuffer data = encoded.buffer();
+        byte[] copy = new byte[data.remaining()];
+        data.get(copy);
+        encoded.release();
+        return copy;
+    }
+
+    public long getRequestId() {
+        return requestId;
     }
 
+    /**
+     * 8字节大端requestID
+     */
     public byte[] getRequestsID() {
-        return requestsID;
+        byte[] b = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            b[i] = (byte) (requestId >>> ((7 - i) << 3));
+        }
+        return b;
     }
 
     public int getCommand() {
-        return CommonUtils.big_bytesToInt(command);
+        return command;
     }
 
+    /**
+     * json请求的内容，二进制请求和对象请求为null
+     */
     public String getJson() {
         return json;
     }
 
+    /**
+     * 二进制请求的内容，只读，json请求和编码器请求为null
+     */
+    public ByteBuffer getBody() {
+        return body != null ? body.duplicate() : null;
+    }
+
+    /**
+     * 对象请求的对象，其他请求为null
+     */
+    public Object getValue() {
+        return value;
+    }
+
     public TCallback getCallback() {
         return callback;
     }
+
+    RequestFuture getFuture() {
+        return future;
+    }
+
+    void setFuture(RequestFuture future) {
+        this.future = future;
+    }
 }
@@ -0,0 +1,175 @@
+package com.innotech.qrpc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private static final class Frame {
+        final long requestId;
+        final int flags;
+        final int command;
+        final byte[] body;
+
+        Frame(long requestId, int flags, int command, byte[] body) {
+            this.requestId = requestId;
+            this.flags = flags;
+            this.command = command;
+            this.body = body;
+        }
+    }
+
+    private final List<Frame> frames = new ArrayList<>();
+
+    private final FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Handler() {
+        @Override
+        public void onFrame(long requestId, int flags, int command, ByteBuffer body) {
+            // body只在回调内有效，复制保存
+            byte[] bytes = new byte[body.remaining()];
+            body.get(bytes);
+            frames.add(new Frame(requestId, flags, command, bytes));
+        }
+    });
+
+    private static byte[] encode(long requestId, int flags, int command, byte[] body) {
+        ByteBuffer buf = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH + body.length);
+        buf.putInt(body.length + FrameDecoder.LENGTH_ADJUSTMENT);
+        buf.putLong(requestId);
+        buf.putInt((flags << 24) | command);
+        buf.put(body);
+        return buf.array();
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31 + 7);
+        }
+        return body;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            buf.put(part);
+        }
+        return buf.array();
+    }
+
+    /**
+     * 按chunk大小分多次喂入
+     */
+    private void feed(byte[] data, int chunk) throws IOException {
+        for (int off = 0; off < data.length; off += chunk) {
+            ByteBuffer in = ByteBuffer.wrap(data, off, Math.min(chunk, data.length - off));
+            decoder.decode(in);
+            assertFalse(in.hasRemaining());
+        }
+    }
+
+    private static void assertFrame(Frame frame, long requestId, int flags, int command, byte[] body) {
+        assertEquals(requestId, frame.requestId);
+        assertEquals(flags, frame.flags);
+        assertEquals(command, frame.command);
+        assertArrayEquals(body, frame.body);
+    }
+
+    @Test
+    public void singleFrame() throws IOException {
+        byte[] body = body(100);
+        feed(encode(1L, FrameDecoder.FLAG_GZIP, 0x123456, body), Integer.MAX_VALUE);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), 1L, FrameDecoder.FLAG_GZIP, 0x123456, body);
+    }
+
+    @Test
+    public void headerSplitAcrossReads() throws IOException {
+        byte[] body = body(10);
+        byte[] data = encode(Long.MAX_VALUE, FrameDecoder.FLAG_BINARY, 0xFFFFFF, body);
+        // 包头在每个位置断开
+        for (int split = 1; split < FrameDecoder.HEADER_LENGTH; split++) {
+            frames.clear();
+            decoder.decode(ByteBuffer.wrap(data, 0, split));
+            assertTrue(frames.isEmpty());
+            decoder.decode(ByteBuffer.wrap(data, split, data.length - split));
+            assertEquals(1, frames.size());
+            assertFrame(frames.get(0), Long.MAX_VALUE, FrameDecoder.FLAG_BINARY, 0xFFFFFF, body);
+        }
+    }
+
+    @Test
+    public void oneByteAtATime() throws IOException {
+        byte[] first = body(33);
+        byte[] second = body(1);
+        feed(concat(encode(1L, 0, 5, first), encode(2L, 0, 6, second)), 1);
+        assertEquals(2, frames.size());
+        assertFrame(frames.get(0), 1L, 0, 5, first);
+        assertFrame(frames.get(1), 2L, 0, 6, second);
+    }
+
+    @Test
+    public void severalFramesInOneBuffer() throws IOException {
+        byte[] a = body(20);
+        byte[] b = new byte[0];
+        byte[] c = body(300);
+        feed(concat(encode(1L, 0, 1, a), encode(2L, 0, 2, b), encode(3L, 0, 3, c)), Integer.MAX_VALUE);
+        assertEquals(3, frames.size());
+        assertFrame(frames.get(0), 1L, 0, 1, a);
+        assertFrame(frames.get(1), 2L, 0, 2, b);
+        assertFrame(frames.get(2), 3L, 0, 3, c);
+    }
+
+    @Test
+    public void frameEndsMidBuffer() throws IOException {
+        byte[] a = body(50);
+        byte[] b = body(70);
+        byte[] data = concat(encode(1L, 0, 1, a), encode(2L, 0, 2, b));
+        // 第一次喂入第一个包和第二个包的一部分包体
+        int split = FrameDecoder.HEADER_LENGTH * 2 + a.length + 10;
+        decoder.decode(ByteBuffer.wrap(data, 0, split));
+        assertEquals(1, frames.size());
+        decoder.decode(ByteBuffer.wrap(data, split, data.length - split));
+        assertEquals(2, frames.size());
+        assertFrame(frames.get(0), 1L, 0, 1, a);
+        assertFrame(frames.get(1), 2L, 0, 2, b);
+    }
+
+    @Test
+    public void bodyLargerThanReadBuffer() throws IOException {
+        // 大于缓冲区池最大等级，包体分多次读入后合并
+        byte[] body = body((1 << 20) + 12345);
+        byte[] small = body(8);
+        feed(concat(encode(7L, 0, 9, body), encode(8L, 0, 10, small)), 8 * 1024);
+        assertEquals(2, frames.size());
+        assertFrame(frames.get(0), 7L, 0, 9, body);
+        assertFrame(frames.get(1), 8L, 0, 10, small);
+    }
+
+    @Test
+    public void bodyReusedAfterCumulation() throws IOException {
+        byte[] a = body(5000);
+        byte[] b = body(4000);
+        feed(concat(encode(1L, 0, 1, a), encode(2L, 0, 2, b), encode(3L, 0, 3, a)), 1000);
+        assertEquals(3, frames.size());
+        assertFrame(frames.get(0), 1L, 0, 1, a);
+        assertFrame(frames.get(1), 2L, 0, 2, b);
+        assertFrame(frames.get(2), 3L, 0, 3, a);
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidLength() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH);
+        buf.putInt(0, FrameDecoder.LENGTH_ADJUSTMENT - 1);
+        decoder.decode(buf);
+    }
+}
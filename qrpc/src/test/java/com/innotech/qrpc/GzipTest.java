@@ -0,0 +1,238 @@
+package com.innotech.qrpc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class GzipTest {
+
+    private static byte[] compressible(int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < length; i++) {
+            sb.append("{\"id\":").append(i % 50).append(",\"name\":\"中文\"}");
+        }
+        return sb.toString().substring(0, length).getBytes(Utf8.UTF_8);
+    }
+
+    private static ByteBuffer frame(long requestId, int command, byte[] body) {
+        ByteBuffer buf = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH + body.length);
+        buf.putInt(body.length + FrameDecoder.LENGTH_ADJUSTMENT);
+        buf.putLong(requestId);
+        buf.putInt(command);
+        buf.put(body);
+        buf.flip();
+        return buf;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(ByteBuffer body) throws DataFormatException {
+        PooledBuffer out = Gzip.decompress(body);
+        try {
+            byte[] bytes = new byte[out.buffer().remaining()];
+            out.buffer().get(bytes);
+            return bytes;
+        } finally {
+            out.release();
+        }
+    }
+
+    private static void putIntLE(byte[] dst, int pos, int value) {
+        dst[pos] = (byte) value;
+        dst[pos + 1] = (byte) (value >>> 8);
+        dst[pos + 2] = (byte) (value >>> 16);
+        dst[pos + 3] = (byte) (value >>> 24);
+    }
+
+    @Test
+    public void compressFrameRoundTrip() throws Exception {
+        byte[] body = compressible(10000);
+        PooledBuffer compressed = Gzip.compressFrame(frame(42L, 0x123456, body));
+        assertNotNull(compressed);
+        try {
+            ByteBuffer data = compressed.buffer();
+            int length = data.getInt(0);
+            assertEquals(data.remaining() - FrameDecoder.HEADER_LENGTH, length - FrameDecoder.LENGTH_ADJUSTMENT);
+            assertTrue(length - FrameDecoder.LENGTH_ADJUSTMENT < body.length);
+            assertEquals(42L, data.getLong(4));
+            int word = data.getInt(12);
+            assertEquals(FrameDecoder.FLAG_GZIP, word >>> 24);
+            assertEquals(0x123456, word & 0xFFFFFF);
+
+            ByteBuffer gzipBody = data.duplicate();
+            gzipBody.position(FrameDecoder.HEADER_LENGTH);
+            assertArrayEquals(body, decompress(gzipBody));
+            // 标准gzip格式
+            byte[] bytes = new byte[gzipBody.remaining()];
+            gzipBody.get(bytes);
+            assertArrayEquals(body, gunzip(bytes));
+        } finally {
+            compressed.release();
+        }
+    }
+
+    @Test
+    public void incompressibleBodyNotCompressed() {
+        byte[] body = new byte[1000];
+        new Random(1).nextBytes(body);
+        assertNull(Gzip.compressFrame(frame(1L, 1, body)));
+        // 包体太短
+        assertNull(Gzip.compressFrame(frame(1L, 1, compressible(10))));
+    }
+
+    @Test
+    public void decompressStandardGzip() throws Exception {
+        byte[] body = compressible(5000);
+        assertArrayEquals(body, decompress(ByteBuffer.wrap(gzip(body))));
+        assertArrayEquals(new byte[0], decompress(ByteBuffer.wrap(gzip(new byte[0]))));
+    }
+
+    @Test
+    public void decompressSkipsOptionalHeaderFields() throws Exception {
+        byte[] body = compressible(3000);
+        byte[] gzip = gzip(body);
+        byte[] extra = {2, 0, 'x', 'y'};
+        byte[] name = {'a', '.', 'j', 's', 'o', 'n', 0};
+        ByteBuffer buf = ByteBuffer.allocate(gzip.length + extra.length + name.length);
+        buf.put(gzip, 0, Gzip.HEADER_LENGTH);
+        // FEXTRA | FNAME
+        buf.put(3, (byte) (4 | 8));
+        buf.put(extra).put(name);
+        buf.put(gzip, Gzip.HEADER_LENGTH, gzip.length - Gzip.HEADER_LENGTH);
+        buf.flip();
+        assertArrayEquals(body, decompress(buf));
+    }
+
+    @Test
+    public void decompressDirectBuffer() throws Exception {
+        byte[] body = compressible(20000);
+        byte[] gzip = gzip(body);
+        ByteBuffer direct = ByteBuffer.allocateDirect(gzip.length + 10);
+        direct.position(10);
+        direct.put(gzip);
+        direct.position(10);
+        assertArrayEquals(body, decompress(direct));
+        // 不改变输入的position
+        assertEquals(10, direct.position());
+    }
+
+    @Test
+    public void decompressHeapBufferWithOffset() throws Exception {
+        byte[] body = compressible(2000);
+        byte[] gzip = gzip(body);
+        byte[] padded = new byte[gzip.length + 7];
+        System.arraycopy(gzip, 0, padded, 5, gzip.length);
+        ByteBuffer slice = ByteBuffer.wrap(padded, 5, gzip.length).slice();
+        assertArrayEquals(body, decompress(slice));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void crcMismatch() throws Exception {
+        byte[] gzip = gzip(compressible(1000));
+        gzip[gzip.length - Gzip.TRAILER_LENGTH] ^= 1;
+        decompress(ByteBuffer.wrap(gzip));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void corruptedDeflateData() throws Exception {
+        byte[] gzip = gzip(compressible(1000));
+        gzip[Gzip.HEADER_LENGTH + 5] ^= 0x55;
+        decompress(ByteBuffer.wrap(gzip));
+    }
+
+    @Test
+    public void sizeAboveCapRejected() throws Exception {
+        byte[] gzip = gzip(compressible(1000));
+        putIntLE(gzip, gzip.length - 4, Gzip.MAX_INFLATED_LENGTH + 1);
+        try {
+            decompress(ByteBuffer.wrap(gzip));
+            fail();
+        } catch (DataFormatException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("gzip size"));
+        }
+        // 大于2G的ISIZE
+        putIntLE(gzip, gzip.length - 4, -1);
+        try {
+            decompress(ByteBuffer.wrap(gzip));
+            fail();
+        } catch (DataFormatException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("gzip size"));
+        }
+    }
+
+    @Test
+    public void sizeMismatchRejected() throws Exception {
+        byte[] body = compressible(1000);
+        byte[] gzip = gzip(body);
+        int[] sizes = {body.length - 1, body.length + 1, 0};
+        for (int size : sizes) {
+            putIntLE(gzip, gzip.length - 4, size);
+            try {
+                decompress(ByteBuffer.wrap(gzip));
+                fail("size " + size);
+            } catch (DataFormatException e) {
+                assertEquals("gzip length mismatch", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void truncatedOrNotGzip() throws Exception {
+        byte[] gzip = gzip(compressible(1000));
+        byte[][] inputs = {
+                new byte[0],
+                new byte[]{0x1f, (byte) 0x8b, 8},
+                Arrays.copyOf(gzip, gzip.length - 3),
+                compressible(100),
+        };
+        for (byte[] input : inputs) {
+            try {
+                decompress(ByteBuffer.wrap(input));
+                fail();
+            } catch (DataFormatException e) {
+                // 格式错误
+            }
+        }
+    }
+
+    @Test
+    public void inflaterReusedAfterFailure() throws Exception {
+        byte[] body = compressible(1000);
+        byte[] bad = gzip(body);
+        bad[bad.length - Gzip.TRAILER_LENGTH] ^= 1;
+        try {
+            decompress(ByteBuffer.wrap(bad));
+            fail();
+        } catch (DataFormatException e) {
+            // crc错误
+        }
+        assertArrayEquals(body, decompress(ByteBuffer.wrap(gzip(body))));
+    }
+}
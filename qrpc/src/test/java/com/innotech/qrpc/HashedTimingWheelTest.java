@@ -0,0 +1,112 @@
+package com.innotech.qrpc;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HashedTimingWheelTest {
+    private static final long TICK_MILLIS = 10;
+
+    private final HashedTimingWheel wheel = new HashedTimingWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, 8, "test-timer");
+
+    @Test
+    public void expiresAfterDelay() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 精度为一格
+        assertTrue("elapsed " + elapsed, elapsed >= 50 - TICK_MILLIS);
+    }
+
+    @Test
+    public void cancelledTimeoutDoesNotRun() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        HashedTimingWheel.Timeout timeout = wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        Thread.sleep(200);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void cancelAfterExpireFails() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        HashedTimingWheel.Timeout timeout = wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void deadlineBeyondOneRound() throws InterruptedException {
+        // 一圈为8格80ms，250ms的任务需要转3圈以上，不能在前几圈提前执行
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(2);
+        final long start = System.nanoTime();
+        final long[] longElapsed = new long[1];
+        wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                longElapsed[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                order.add("long");
+                latch.countDown();
+            }
+        }, 250, TimeUnit.MILLISECONDS);
+        wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                order.add("short");
+                latch.countDown();
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals("short", order.get(0));
+        assertEquals("long", order.get(1));
+        assertTrue("elapsed " + longElapsed[0], longElapsed[0] >= 250 - TICK_MILLIS);
+    }
+
+    @Test
+    public void cancelSomeOfMany() throws InterruptedException {
+        int count = 1000;
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(count / 2);
+        HashedTimingWheel.Timeout[] timeouts = new HashedTimingWheel.Timeout[count];
+        for (int i = 0; i < count; i++) {
+            timeouts[i] = wheel.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    runs.incrementAndGet();
+                    latch.countDown();
+                }
+            }, 20 + i % 200, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < count; i += 2) {
+            assertTrue(timeouts[i].cancel());
+        }
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(count / 2, runs.get());
+    }
+}
@@ -0,0 +1,262 @@
+package com.innotech.qrpc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class JsonTest {
+
+    private static JsonReader reader(String json) {
+        return new JsonReader(ByteBuffer.wrap(json.getBytes(Utf8.UTF_8)));
+    }
+
+    private interface WriteAction {
+        void write(JsonWriter writer);
+    }
+
+    private static String write(WriteAction action) {
+        // 初始容量很小，写入过程中会扩容
+        BodyWriter body = new BodyWriter(BufferPool.heap().allocate(16));
+        try {
+            action.write(new JsonWriter(body));
+            ByteBuffer data = body.frame().buffer();
+            return new String(data.array(), data.arrayOffset(), data.position(), Utf8.UTF_8);
+        } finally {
+            // 写入抛异常时也要放回缓冲区
+            body.frame().release();
+        }
+    }
+
+    private static String writeString(final String value) {
+        return write(new WriteAction() {
+            @Override
+            public void write(JsonWriter writer) {
+                writer.value(value);
+            }
+        });
+    }
+
+    private static String readString(String json) throws IOException {
+        JsonReader reader = reader(json);
+        String value = reader.nextString();
+        assertEquals(JsonReader.END_DOCUMENT, reader.peek());
+        return value;
+    }
+
+    private static long readLong(String json) throws IOException {
+        JsonReader reader = reader(json);
+        long value = reader.nextLong();
+        assertEquals(JsonReader.END_DOCUMENT, reader.peek());
+        return value;
+    }
+
+    private static void assertNotLong(String json) {
+        try {
+            readLong(json);
+            fail(json);
+        } catch (IOException e) {
+            // 超出long的范围或不是整数
+        }
+    }
+
+    @Test
+    public void writeObject() {
+        String json = write(new WriteAction() {
+            @Override
+            public void write(JsonWriter writer) {
+                writer.beginObject()
+                        .name("id").value(12L)
+                        .name("name").value("中文")
+                        .name("ok").value(true)
+                        .name("none").nullValue()
+                        .name("list").beginArray().value(1L).value(2.5).value("x").beginObject().endObject().endArray()
+                        .name("empty").beginArray().endArray()
+                        .endObject();
+            }
+        });
+        assertEquals("{\"id\":12,\"name\":\"中文\",\"ok\":true,\"none\":null,\"list\":[1,2.5,\"x\",{}],\"empty\":[]}", json);
+    }
+
+    @Test
+    public void writeNullString() {
+        assertEquals("null", writeString(null));
+    }
+
+    @Test
+    public void writeEscapes() {
+        assertEquals("\"a\\\"b\\\\c\"", writeString("a\"b\\c"));
+        assertEquals("\"\\n\\r\\t\"", writeString("\n\r\t"));
+        assertEquals("\"\\u0000\\u0008\\u000c\\u001f\"", writeString("\u0000\b\f\u001f"));
+        // JavaScript中的行分隔符
+        assertEquals("\"\\u2028\\u2029\"", writeString("\u2028\u2029"));
+        assertEquals("\"/\"", writeString("/"));
+        assertEquals("\"中\\n文\"", writeString("中\n文"));
+    }
+
+    @Test
+    public void writeSurrogatePairAsUtf8() {
+        String emoji = "\ud83d\ude00";
+        String json = writeString("a" + emoji + "b");
+        assertEquals("\"a" + emoji + "b\"", json);
+        assertEquals(2 + 1 + 4 + 1, json.getBytes(Utf8.UTF_8).length);
+    }
+
+    @Test
+    public void writeLongBounds() {
+        String json = write(new WriteAction() {
+            @Override
+            public void write(JsonWriter writer) {
+                writer.beginArray().value(Long.MIN_VALUE).value(Long.MAX_VALUE).value(0L).value(-1L)
+                        .value(-0.0).value(1e20).value(0.1).endArray();
+            }
+        });
+        assertEquals("[-9223372036854775808,9223372036854775807,0,-1,0,1.0E20,0.1]", json);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writeNaN() {
+        write(new WriteAction() {
+            @Override
+            public void write(JsonWriter writer) {
+                writer.value(Double.NaN);
+            }
+        });
+    }
+
+    @Test
+    public void readEscapes() throws IOException {
+        assertEquals("a\"b\\c/d", readString("\"a\\\"b\\\\c\\/d\""));
+        assertEquals("\n\r\t\b\f", readString("\"\\n\\r\\t\\b\\f\""));
+        assertEquals("\u0000\u2028中", readString("\"\\u0000\\u2028\\u4E2D\""));
+        assertEquals("前\n后", readString("\"前\\n后\""));
+    }
+
+    @Test
+    public void readSurrogatePairs() throws IOException {
+        String emoji = "\ud83d\ude00";
+        // 转义的代理对
+        assertEquals(emoji, readString("\"\\ud83d\\ude00\""));
+        assertEquals("x" + emoji + "y", readString("\"x\\uD83D\\uDE00y\""));
+        // 直接写入的4字节UTF-8
+        assertEquals(emoji, readString("\"" + emoji + "\""));
+        assertEquals(emoji + "\n", readString("\"" + emoji + "\\n\""));
+    }
+
+    @Test
+    public void escapeRoundTrip() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0; c < 0x100; c++) {
+            sb.append(c);
+        }
+        sb.append("\u2028\u2029中文\ud83d\ude00\"\\");
+        String value = sb.toString();
+        assertEquals(value, readString(writeString(value)));
+    }
+
+    @Test
+    public void badEscapes() {
+        String[] inputs = {"\"\\u12\"", "\"\\uZZZZ\"", "\"abc", "\"abc\\"};
+        for (String input : inputs) {
+            try {
+                readString(input);
+                fail(input);
+            } catch (IOException e) {
+                // 格式错误
+            }
+        }
+    }
+
+    @Test
+    public void readLongBounds() throws IOException {
+        assertEquals(Long.MAX_VALUE, readLong("9223372036854775807"));
+        assertEquals(Long.MIN_VALUE, readLong("-9223372036854775808"));
+        assertEquals(Long.MIN_VALUE + 1, readLong("-9223372036854775807"));
+        assertEquals(0L, readLong("-0"));
+        assertEquals(Long.MIN_VALUE, readLong("\"-9223372036854775808\""));
+        assertEquals(Long.MIN_VALUE, readLong("-9223372036854775808.0"));
+        assertEquals(Long.MIN_VALUE, readLong("-9.223372036854775808e18"));
+        assertEquals(9200000000000000000L, readLong("9.2e18"));
+        assertEquals(1000L, readLong("1e3"));
+        assertEquals(-5L, readLong("-5.0"));
+    }
+
+    @Test
+    public void readLongOverflow() {
+        assertNotLong("9223372036854775808");
+        assertNotLong("-9223372036854775809");
+        assertNotLong("-92233720368547758080");
+        assertNotLong("99999999999999999999");
+        assertNotLong("9.3e18");
+        assertNotLong("-9.3e18");
+        assertNotLong("\"9223372036854775808\"");
+        assertNotLong("1.5");
+        assertNotLong("-");
+    }
+
+    @Test
+    public void readIntRange() throws IOException {
+        assertEquals(Integer.MIN_VALUE, reader("-2147483648").nextInt());
+        try {
+            reader("2147483648").nextInt();
+            fail();
+        } catch (IOException e) {
+            // 超出int的范围
+        }
+    }
+
+    @Test
+    public void readObjectWithNames() throws IOException {
+        JsonReader.Names names = new JsonReader.Names("id", "name", "tags");
+        JsonReader reader = reader(" { \"id\" : 7 , \"skip\" : {\"a\":[1,{\"b\":\"}\"}]}, \"na\\u006de\":\"n\", \"tags\":[\"x\",true,null,-1.5e2] } ");
+        reader.beginObject();
+        assertEquals(0, reader.nextName(names));
+        assertEquals(7, reader.nextInt());
+        assertEquals(-1, reader.nextName(names));
+        reader.skipValue();
+        // 转义的字段名
+        assertEquals(1, reader.nextName(names));
+        assertEquals("n", reader.nextString());
+        assertEquals("tags", reader.nextName());
+        reader.beginArray();
+        assertEquals("x", reader.nextString());
+        assertTrue(reader.nextBoolean());
+        reader.nextNull();
+        assertEquals(-150.0, reader.nextDouble(), 0);
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        assertEquals(JsonReader.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void readDirectBuffer() throws IOException {
+        byte[] bytes = "[\"中文\",1]".getBytes(Utf8.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        JsonReader reader = new JsonReader(direct);
+        reader.beginArray();
+        assertEquals("中文", reader.nextString());
+        assertEquals(1L, reader.nextLong());
+        reader.endArray();
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void syntaxErrors() {
+        String[] inputs = {"{\"a\" 1}", "[1 2]", "{\"a\":1,}", "[1,]", "{1:2}", "tru", "[1]]", ""};
+        for (String input : inputs) {
+            try {
+                JsonReader reader = reader(input);
+                reader.skipValue();
+                reader.peek();
+                fail(input);
+            } catch (IOException e) {
+                // 格式错误
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.innotech.qrpc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongObjectMapTest {
+    private final LongObjectMap<String> map = new LongObjectMap<>();
+
+    /**
+     * 找count个落在同一段、初始容量下探测起点为home的key
+     */
+    private static long[] collidingKeys(int home, int count) {
+        long[] keys = new long[count];
+        int n = 0;
+        int stripe = -1;
+        for (long key = 1; n < count; key++) {
+            long h = LongObjectMap.hash(key);
+            if (((int) h & 15) != home) {
+                continue;
+            }
+            int s = (int) (h >>> 60);
+            if (stripe == -1) {
+                stripe = s;
+            }
+            if (s == stripe) {
+                keys[n++] = key;
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void putGetRemove() {
+        assertNull(map.put(1L, "a"));
+        assertEquals("a", map.put(1L, "b"));
+        assertEquals("b", map.get(1L));
+        assertNull(map.get(2L));
+        assertEquals(1, map.size());
+        assertEquals("b", map.remove(1L));
+        assertNull(map.remove(1L));
+        assertNull(map.get(1L));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void extremeKeys() {
+        long[] keys = {0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE};
+        for (long key : keys) {
+            map.put(key, String.valueOf(key));
+        }
+        for (long key : keys) {
+            assertEquals(String.valueOf(key), map.get(key));
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullValue() {
+        map.put(1L, null);
+    }
+
+    @Test
+    public void removeIfSame() {
+        String value = new String("v");
+        map.put(1L, value);
+        assertFalse(map.remove(1L, new String("v")));
+        assertSame(value, map.get(1L));
+        assertTrue(map.remove(1L, value));
+        assertNull(map.get(1L));
+        assertFalse(map.remove(1L, value));
+    }
+
+    @Test
+    public void collisionsSurviveBackwardShiftDelete() {
+        long[] keys = collidingKeys(3, 6);
+        // 每个位置删除一次，其余key仍然能找到
+        for (int removed = 0; removed < keys.length; removed++) {
+            for (long key : keys) {
+                map.put(key, String.valueOf(key));
+            }
+            assertEquals(String.valueOf(keys[removed]), map.remove(keys[removed]));
+            for (int i = 0; i < keys.length; i++) {
+                if (i == removed) {
+                    assertNull(map.get(keys[i]));
+                } else {
+                    assertEquals(String.valueOf(keys[i]), map.get(keys[i]));
+                }
+            }
+            for (long key : keys) {
+                map.remove(key);
+            }
+            assertEquals(0, map.size());
+        }
+    }
+
+    @Test
+    public void collisionsWrapAround() {
+        // 探测起点为最后一个位置，探测链绕回数组开头
+        long[] keys = collidingKeys(15, 5);
+        long[] others = collidingKeys(0, 2);
+        for (long key : keys) {
+            map.put(key, String.valueOf(key));
+        }
+        for (long key : others) {
+            map.put(key, String.valueOf(key));
+        }
+        assertEquals(String.valueOf(keys[0]), map.remove(keys[0]));
+        assertEquals(String.valueOf(keys[2]), map.remove(keys[2]));
+        for (int i = 1; i < keys.length; i += 2) {
+            assertEquals(String.valueOf(keys[i]), map.get(keys[i]));
+        }
+        for (long key : others) {
+            assertEquals(String.valueOf(key), map.get(key));
+        }
+        assertEquals(keys.length - 2 + others.length, map.size());
+    }
+
+    @Test
+    public void resize() {
+        int count = 10000;
+        for (long key = 0; key < count; key++) {
+            map.put(key, String.valueOf(key));
+        }
+        assertEquals(count, map.size());
+        for (long key = 0; key < count; key++) {
+            assertEquals(String.valueOf(key), map.get(key));
+        }
+        for (long key = 0; key < count; key += 2) {
+            assertEquals(String.valueOf(key), map.remove(key));
+        }
+        assertEquals(count / 2, map.size());
+        for (long key = 0; key < count; key++) {
+            if ((key & 1) == 0) {
+                assertNull(map.get(key));
+            } else {
+                assertEquals(String.valueOf(key), map.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(42);
+        Map<Long, String> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            long key = random.nextInt(2000);
+            int op = random.nextInt(3);
+            if (op == 0) {
+                String value = String.valueOf(i);
+                assertEquals(expected.put(key, value), map.put(key, value));
+            } else if (op == 1) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.get(key), map.get(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void valuesAndDrain() {
+        for (long key = 0; key < 100; key++) {
+            map.put(key, String.valueOf(key));
+        }
+        List<String> values = new ArrayList<>();
+        map.valuesTo(values);
+        assertEquals(100, values.size());
+        assertEquals(100, map.size());
+
+        List<String> drained = new ArrayList<>();
+        map.drainTo(drained);
+        Collections.sort(values);
+        Collections.sort(drained);
+        assertEquals(values, drained);
+        assertEquals(0, map.size());
+        assertNull(map.get(1L));
+        // 清空后可以继续使用
+        map.put(1L, "a");
+        assertEquals("a", map.get(1L));
+    }
+}
@@ -0,0 +1,187 @@
+package com.innotech.qrpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+    private static final int SEGMENT_SIZE = 4096;
+    // 记录长度、CRC32、类型
+    private static final int RECORD_HEADER = 9;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("outbox", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static ByteBuffer frame(long requestId, int bodyLength) {
+        ByteBuffer buf = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH + bodyLength);
+        buf.putInt(bodyLength + FrameDecoder.LENGTH_ADJUSTMENT);
+        buf.putLong(requestId);
+        buf.putInt(1000);
+        for (int i = 0; i < bodyLength; i++) {
+            buf.put((byte) (requestId + i));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void assertFrames(Outbox outbox, long... requestIds) {
+        List<ByteBuffer> frames = outbox.pendingFrames();
+        assertEquals(requestIds.length, frames.size());
+        assertEquals(requestIds.length, outbox.size());
+        for (int i = 0; i < requestIds.length; i++) {
+            ByteBuffer frame = frames.get(i);
+            long requestId = frame.getLong(4);
+            assertEquals(requestIds[i], requestId);
+            assertEquals(frame(requestId, frame.remaining() - FrameDecoder.HEADER_LENGTH), frame);
+        }
+    }
+
+    private Outbox reopen() throws IOException {
+        return new Outbox(dir, SEGMENT_SIZE);
+    }
+
+    private File logFile() {
+        return new File(dir, "qrpc-outbox.log");
+    }
+
+    @Test
+    public void recoverAppendedAndAcked() throws IOException {
+        Outbox outbox = reopen();
+        assertTrue(outbox.append(1L, frame(1L, 10)));
+        assertTrue(outbox.append(2L, frame(2L, 20)));
+        assertTrue(outbox.append(3L, frame(3L, 30)));
+        outbox.ack(2L);
+        // 重复确认和未知的requestID不影响
+        outbox.ack(2L);
+        outbox.ack(99L);
+        assertFrames(outbox, 1L, 3L);
+
+        Outbox recovered = reopen();
+        assertFrames(recovered, 1L, 3L);
+        // 恢复后可以继续追加
+        assertTrue(recovered.append(4L, frame(4L, 5)));
+        assertFrames(reopen(), 1L, 3L, 4L);
+    }
+
+    @Test
+    public void ackAllStartsOver() throws IOException {
+        Outbox outbox = reopen();
+        outbox.append(1L, frame(1L, 10));
+        outbox.append(2L, frame(2L, 10));
+        outbox.ack(1L);
+        outbox.ack(2L);
+        assertFrames(reopen());
+        outbox.append(3L, frame(3L, 10));
+        assertFrames(reopen(), 3L);
+    }
+
+    @Test
+    public void tornLastRecordIgnored() throws IOException {
+        Outbox outbox = reopen();
+        outbox.append(1L, frame(1L, 10));
+        outbox.append(2L, frame(2L, 20));
+        outbox.append(3L, frame(3L, 30));
+        int lastRecord = 2 * RECORD_HEADER + 2 * FrameDecoder.HEADER_LENGTH + 10 + 20;
+
+        // 长度已写入，但内容只写了一部分
+        RandomAccessFile raf = new RandomAccessFile(logFile(), "rw");
+        try {
+            raf.seek(lastRecord + RECORD_HEADER + FrameDecoder.HEADER_LENGTH + 5);
+            raf.write(new byte[]{0x55, 0x55, 0x55});
+        } finally {
+            raf.close();
+        }
+        Outbox recovered = reopen();
+        assertFrames(recovered, 1L, 2L);
+
+        // 新记录覆盖不完整的记录
+        assertTrue(recovered.append(4L, frame(4L, 8)));
+        assertFrames(reopen(), 1L, 2L, 4L);
+    }
+
+    @Test
+    public void recordLengthBeyondFileIgnored() throws IOException {
+        Outbox outbox = reopen();
+        outbox.append(1L, frame(1L, 10));
+        outbox.append(2L, frame(2L, 10));
+        int lastRecord = RECORD_HEADER + FrameDecoder.HEADER_LENGTH + 10;
+        RandomAccessFile raf = new RandomAccessFile(logFile(), "rw");
+        try {
+            raf.seek(lastRecord);
+            raf.writeInt(SEGMENT_SIZE);
+        } finally {
+            raf.close();
+        }
+        assertFrames(reopen(), 1L);
+    }
+
+    @Test
+    public void compactKeepsPendingInOrder() throws IOException {
+        Outbox outbox = reopen();
+        // 每条记录109字节，日志写满多次，每次只保留最近的几条未确认消息
+        for (long id = 1; id <= 200; id++) {
+            assertTrue("append " + id, outbox.append(id, frame(id, 84)));
+            if (id > 3) {
+                outbox.ack(id - 3);
+            }
+        }
+        assertFrames(outbox, 198L, 199L, 200L);
+        assertFrames(reopen(), 198L, 199L, 200L);
+        assertFalse(new File(dir, "qrpc-outbox.tmp").exists());
+    }
+
+    @Test
+    public void fullWhenPendingFillsLog() throws IOException {
+        Outbox outbox = reopen();
+        int appended = 0;
+        for (long id = 1; id <= 100; id++) {
+            if (!outbox.append(id, frame(id, 200))) {
+                break;
+            }
+            appended++;
+        }
+        assertTrue(appended > 0 && appended < 100);
+        // 已写入的消息都还在
+        long[] ids = new long[appended];
+        for (int i = 0; i < appended; i++) {
+            ids[i] = i + 1;
+        }
+        assertFrames(reopen(), ids);
+
+        // 确认一条后压缩出空间
+        outbox.ack(1L);
+        assertTrue(outbox.append(1000L, frame(1000L, 200)));
+    }
+
+    @Test
+    public void oversizedFrameRejected() throws IOException {
+        Outbox outbox = reopen();
+        assertFalse(outbox.append(1L, frame(1L, SEGMENT_SIZE / 2)));
+        assertEquals(0, outbox.size());
+    }
+}
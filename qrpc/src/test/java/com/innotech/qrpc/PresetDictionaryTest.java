@@ -0,0 +1,191 @@
+package com.innotech.qrpc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class PresetDictionaryTest {
+    // 字典表是全局的，每个测试使用不同的版本
+    private static final byte[] DICTIONARY =
+            "{\"userId\":,\"nickname\":\"\",\"avatar\":\"https://\",\"messageType\":,\"content\":\"\"}".getBytes(Utf8.UTF_8);
+    private static final byte[] BODY =
+            "{\"userId\":10086,\"nickname\":\"小明\",\"avatar\":\"https://a.b/c.png\",\"messageType\":1,\"content\":\"你好\"}".getBytes(Utf8.UTF_8);
+
+    private static ByteBuffer frame(long requestId, int command, byte[] body) {
+        ByteBuffer buf = ByteBuffer.allocate(FrameDecoder.HEADER_LENGTH + body.length);
+        buf.putInt(body.length + FrameDecoder.LENGTH_ADJUSTMENT);
+        buf.putLong(requestId);
+        buf.putInt(command);
+        buf.put(body);
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer body(PooledBuffer frame) {
+        ByteBuffer body = frame.buffer().duplicate();
+        body.position(FrameDecoder.HEADER_LENGTH);
+        return body;
+    }
+
+    private static byte[] decompress(ByteBuffer body) throws DataFormatException {
+        PooledBuffer out = PresetDictionary.decompress(body);
+        try {
+            byte[] bytes = new byte[out.buffer().remaining()];
+            out.buffer().get(bytes);
+            return bytes;
+        } finally {
+            out.release();
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        int version = 60001;
+        PresetDictionary.register(version, DICTIONARY);
+        PooledBuffer compressed = PresetDictionary.compressFrame(frame(9L, 0x000102, BODY), version);
+        assertNotNull(compressed);
+        try {
+            ByteBuffer data = compressed.buffer();
+            assertEquals(data.remaining() - FrameDecoder.HEADER_LENGTH, data.getInt(0) - FrameDecoder.LENGTH_ADJUSTMENT);
+            assertEquals(9L, data.getLong(4));
+            assertEquals(FrameDecoder.FLAG_DICTIONARY, data.getInt(12) >>> 24);
+            assertEquals(0x000102, data.getInt(12) & 0xFFFFFF);
+            // 包体前缀：版本、原长度
+            assertEquals(version, data.getShort(FrameDecoder.HEADER_LENGTH) & 0xFFFF);
+            assertEquals(BODY.length, data.getInt(FrameDecoder.HEADER_LENGTH + 2));
+            assertTrue(data.remaining() < FrameDecoder.HEADER_LENGTH + BODY.length);
+
+            ByteBuffer body = body(compressed);
+            assertArrayEquals(BODY, decompress(body));
+            assertEquals(FrameDecoder.HEADER_LENGTH, body.position());
+            // Response按标志位选择解压方式
+            PooledBuffer inflated = Response.inflate(FrameDecoder.FLAG_DICTIONARY, body);
+            try {
+                assertEquals(ByteBuffer.wrap(BODY), inflated.buffer());
+            } finally {
+                inflated.release();
+            }
+        } finally {
+            compressed.release();
+        }
+    }
+
+    @Test
+    public void dictionaryBeatsPlainDeflateOnShortJson() {
+        int version = 60002;
+        PresetDictionary.register(version, DICTIONARY);
+        PooledBuffer withDictionary = PresetDictionary.compressFrame(frame(1L, 1, BODY), version);
+        assertNotNull(withDictionary);
+        PooledBuffer gzip = Gzip.compressFrame(frame(1L, 1, BODY));
+        try {
+            // 短消息gzip没有效果或效果不如字典
+            assertTrue(gzip == null || withDictionary.buffer().remaining() < gzip.buffer().remaining());
+        } finally {
+            withDictionary.release();
+            if (gzip != null) {
+                gzip.release();
+            }
+        }
+    }
+
+    @Test
+    public void unknownVersion() throws Exception {
+        int version = 60003;
+        assertNull(PresetDictionary.get(version));
+        assertNull(PresetDictionary.compressFrame(frame(1L, 1, BODY), version));
+
+        PresetDictionary.register(60004, DICTIONARY);
+        PooledBuffer compressed = PresetDictionary.compressFrame(frame(1L, 1, BODY), 60004);
+        assertNotNull(compressed);
+        try {
+            ByteBuffer body = body(compressed);
+            // 改为未注册的版本
+            body.putShort(FrameDecoder.HEADER_LENGTH, (short) version);
+            try {
+                decompress(body);
+                fail();
+            } catch (DataFormatException e) {
+                assertEquals("unknown dictionary version " + version, e.getMessage());
+            }
+        } finally {
+            compressed.release();
+        }
+    }
+
+    @Test
+    public void registerKeepsVersionsSortedAndReplaces() {
+        byte[] other = "{\"other\":".getBytes(Utf8.UTF_8);
+        PresetDictionary.register(60012, DICTIONARY);
+        PresetDictionary.register(60010, DICTIONARY);
+        PresetDictionary.register(60011, other);
+        PresetDictionary.register(60010, other);
+        int[] versions = PresetDictionary.versions();
+        int[] sorted = versions.clone();
+        Arrays.sort(sorted);
+        assertArrayEquals(sorted, versions);
+        assertTrue(Arrays.binarySearch(versions, 60010) >= 0);
+        assertTrue(Arrays.binarySearch(versions, 60011) >= 0);
+        assertTrue(Arrays.binarySearch(versions, 60012) >= 0);
+        assertSame(other, PresetDictionary.get(60010));
+        assertSame(other, PresetDictionary.get(60011));
+        assertSame(DICTIONARY, PresetDictionary.get(60012));
+    }
+
+    @Test
+    public void directBufferInput() throws Exception {
+        int version = 60005;
+        PresetDictionary.register(version, DICTIONARY);
+        PooledBuffer compressed = PresetDictionary.compressFrame(frame(1L, 1, BODY), version);
+        assertNotNull(compressed);
+        try {
+            ByteBuffer body = body(compressed);
+            ByteBuffer direct = ByteBuffer.allocateDirect(body.remaining() + 3);
+            direct.position(3);
+            direct.put(body);
+            direct.position(3);
+            assertArrayEquals(BODY, decompress(direct));
+            assertEquals(3, direct.position());
+        } finally {
+            compressed.release();
+        }
+    }
+
+    @Test
+    public void lengthMismatchRejected() throws Exception {
+        int version = 60006;
+        PresetDictionary.register(version, DICTIONARY);
+        PooledBuffer compressed = PresetDictionary.compressFrame(frame(1L, 1, BODY), version);
+        assertNotNull(compressed);
+        try {
+            ByteBuffer body = body(compressed);
+            int[] lengths = {BODY.length - 1, BODY.length + 1};
+            for (int length : lengths) {
+                body.putInt(FrameDecoder.HEADER_LENGTH + 2, length);
+                try {
+                    decompress(body);
+                    fail("length " + length);
+                } catch (DataFormatException e) {
+                    assertEquals("dictionary frame length mismatch", e.getMessage());
+                }
+            }
+            body.putInt(FrameDecoder.HEADER_LENGTH + 2, Gzip.MAX_INFLATED_LENGTH + 1);
+            try {
+                decompress(body);
+                fail();
+            } catch (DataFormatException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("dictionary frame size"));
+            }
+        } finally {
+            compressed.release();
+        }
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void truncatedPrefix() throws Exception {
+        decompress(ByteBuffer.wrap(new byte[PresetDictionary.PREFIX_LENGTH - 1]));
+    }
+}
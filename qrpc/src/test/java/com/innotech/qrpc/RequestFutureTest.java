@@ -0,0 +1,238 @@
+package com.innotech.qrpc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RequestFutureTest {
+    // 请求的包从缓冲区池获取，测试结束时放回
+    private final List<WriteData> requests = new ArrayList<>();
+
+    private WriteData request() {
+        WriteData request = new WriteData(1, "{}");
+        requests.add(request);
+        return request;
+    }
+
+    @After
+    public void releaseRequests() {
+        for (WriteData request : requests) {
+            request.releaseFrame();
+        }
+        requests.clear();
+    }
+
+    private static final class RecordingCallback implements TCallback<String> {
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicReference<String> result = new AtomicReference<>();
+
+        @Override
+        public void onSuccess(String s) {
+            successes.incrementAndGet();
+            result.set(s);
+        }
+
+        @Override
+        public void onFailure(String msg) {
+            failures.incrementAndGet();
+            result.set(msg);
+        }
+
+        int calls() {
+            return successes.get() + failures.get();
+        }
+    }
+
+    private static Response response(WriteData request, String json) {
+        return new Response(request.getRequestId(), 0, request.getCommand(), request,
+                ByteBuffer.wrap(json.getBytes(Utf8.UTF_8)));
+    }
+
+    @Test
+    public void completeWithCallback() throws Exception {
+        WriteData request = request();
+        RecordingCallback callback = new RecordingCallback();
+        RequestFuture future = new RequestFuture(request, callback);
+        assertFalse(future.isDone());
+        assertTrue(future.complete(response(request, "{\"a\":\"中文\"}")));
+        assertTrue(future.isDone());
+        assertEquals(1, callback.successes.get());
+        assertEquals("{\"a\":\"中文\"}", callback.result.get());
+        assertEquals("{\"a\":\"中文\"}", future.get());
+    }
+
+    @Test
+    public void completeWithoutCallbackDecodesOnGet() throws Exception {
+        WriteData request = request();
+        RequestFuture future = new RequestFuture(request, null);
+        Response response = response(request, "{\"a\":1}");
+        assertTrue(future.complete(response));
+        // 回包缓冲区在complete返回后就可以回收
+        response.getBody().array()[0] = 0;
+        assertEquals("{\"a\":1}", future.get());
+        assertEquals("{\"a\":1}", future.<String>getValue());
+        assertArrayEquals("{\"a\":1}".getBytes(Utf8.UTF_8), future.getBody());
+    }
+
+    @Test
+    public void failThenComplete() throws Exception {
+        WriteData request = request();
+        RecordingCallback callback = new RecordingCallback();
+        RequestFuture future = new RequestFuture(request, callback);
+        assertTrue(future.fail("请求超时"));
+        assertFalse(future.fail("长连接断开"));
+        assertFalse(future.complete(response(request, "{}")));
+        assertEquals(1, callback.failures.get());
+        assertEquals(0, callback.successes.get());
+        assertEquals("请求超时", callback.result.get());
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("请求超时", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        WriteData request = request();
+        RecordingCallback callback = new RecordingCallback();
+        RequestFuture future = new RequestFuture(request, callback);
+        assertTrue(future.cancel(false));
+        assertFalse(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+        assertFalse(future.complete(response(request, "{}")));
+        assertFalse(future.fail("请求超时"));
+        assertEquals(1, callback.failures.get());
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException e) {
+            // 已取消
+        }
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void getTimesOut() throws Exception {
+        new RequestFuture(request(), null).get(20, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void getWakesUpOnComplete() throws Exception {
+        final WriteData request = request();
+        final RequestFuture future = new RequestFuture(request, null);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                future.complete(response(request, "{\"done\":true}"));
+            }
+        }.start();
+        assertEquals("{\"done\":true}", future.get(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timeoutCancelledOnComplete() throws Exception {
+        WriteData request = request();
+        RequestFuture future = new RequestFuture(request, null);
+        HashedTimingWheel wheel = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 8, "test-timer");
+        HashedTimingWheel.Timeout timeout = wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1, TimeUnit.SECONDS);
+        future.setTimeout(timeout);
+        assertTrue(future.complete(response(request, "{}")));
+        // 完成时已取消
+        assertFalse(timeout.cancel());
+
+        // 已完成后设置的超时任务直接取消
+        HashedTimingWheel.Timeout late = wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1, TimeUnit.SECONDS);
+        future.setTimeout(late);
+        assertFalse(late.cancel());
+    }
+
+    @Test
+    public void concurrentCompleteFailCancel() throws Exception {
+        for (int round = 0; round < 500; round++) {
+            final WriteData request = request();
+            final RecordingCallback callback = new RecordingCallback();
+            final RequestFuture future = new RequestFuture(request, callback);
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger winners = new AtomicInteger();
+            Thread[] threads = new Thread[6];
+            for (int i = 0; i < threads.length; i++) {
+                final int kind = i % 3;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        boolean won;
+                        if (kind == 0) {
+                            won = future.complete(response(request, "{\"ok\":1}"));
+                        } else if (kind == 1) {
+                            won = future.fail("请求超时");
+                        } else {
+                            won = future.cancel(false);
+                        }
+                        if (won) {
+                            winners.incrementAndGet();
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // 只有一个线程完成，回调只执行一次
+            assertEquals(1, winners.get());
+            assertEquals(1, callback.calls());
+            assertTrue(future.isDone());
+            if (callback.successes.get() == 1) {
+                assertEquals("{\"ok\":1}", future.get());
+            } else if (future.isCancelled()) {
+                try {
+                    future.get();
+                    fail();
+                } catch (CancellationException e) {
+                    // 已取消
+                }
+            } else {
+                try {
+                    future.get();
+                    fail();
+                } catch (ExecutionException e) {
+                    assertEquals("请求超时", e.getCause().getMessage());
+                }
+            }
+        }
+    }
+}